@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+/**
+ * The content hash stored with each note in {@link NotePad.NoteColumns#CONTENT_HASH}.
+ * It is a 64-bit FNV-1a over the UTF-16 chars, computed straight from any
+ * CharSequence so an editor's text never has to be copied into a String.
+ */
+final class ContentHash {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    // This class cannot be instantiated
+    private ContentHash() {
+    }
+
+    static long hash(CharSequence text) {
+        long h = OFFSET_BASIS;
+        if (text == null) {
+            return h;
+        }
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            h ^= c & 0xff;
+            h *= PRIME;
+            h ^= c >>> 8;
+            h *= PRIME;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.SparseIntArray;
+
+import com.mokee.notepad.NotePad.Corpus;
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * Word, character, month and term statistics over the text of all notes,
+ * served by {@link NotePadProvider} as {@link Corpus#CONTENT_URI}.
+ * <p>
+ * Notes are streamed from the database in chunks of consecutive ids, and
+ * each chunk is aggregated on a pool with one thread per CPU. The partial
+ * result of every chunk is kept, so after a note changes only its chunk is
+ * read and aggregated again before the partials are merged. Counting is done
+ * with arrays of primitives rather than boxed maps.
+ */
+final class CorpusStats {
+
+    /** Ids per chunk, as a shift: chunk 3 holds ids 768 to 1023. */
+    private static final int CHUNK_SHIFT = 8;
+
+    private static final int TOP_TERMS = 20;
+    private static final int TOP_NOTES = 10;
+
+    /** Shorter or longer words are not counted as terms. */
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+
+    private static final String NOTES_TABLE = "notes";
+
+    private static final String[] PROJECTION = new String[] {
+            NoteColumns._ID, NoteColumns.NOTE, NoteColumns.CREATED_DATE
+    };
+
+    private static final String[] COLUMNS = new String[] {
+            Corpus.KIND, Corpus.KEY, Corpus.VALUE
+    };
+
+    private static ExecutorService sPool;
+
+    /**
+     * Counts of terms in an open addressing table. Terms are folded to lower
+     * case, and only copied into a String the first time they are seen.
+     */
+    static final class TermCounter {
+        private String[] mKeys = new String[64];
+        private int[] mCounts = new int[64];
+        private int mSize;
+
+        private static int slot(int hash, int mask) {
+            // Spread the bits; String hashes of short words cluster.
+            hash ^= (hash >>> 16);
+            hash *= 0x45d9f3b;
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+
+        void add(CharSequence text, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + Character.toLowerCase(text.charAt(i));
+            }
+            final int mask = mKeys.length - 1;
+            int slot = slot(hash, mask);
+            while (mKeys[slot] != null) {
+                if (matches(mKeys[slot], text, start, end)) {
+                    mCounts[slot]++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            final char[] chars = new char[end - start];
+            for (int i = start; i < end; i++) {
+                chars[i - start] = Character.toLowerCase(text.charAt(i));
+            }
+            insert(slot, new String(chars), 1);
+        }
+
+        /** Adds count to a term that is already folded. */
+        void add(String term, int count) {
+            final int mask = mKeys.length - 1;
+            int slot = slot(term.hashCode(), mask);
+            while (mKeys[slot] != null) {
+                if (mKeys[slot].equals(term)) {
+                    mCounts[slot] += count;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            insert(slot, term, count);
+        }
+
+        void addAll(TermCounter other) {
+            for (int i = 0; i < other.mKeys.length; i++) {
+                if (other.mKeys[i] != null) {
+                    add(other.mKeys[i], other.mCounts[i]);
+                }
+            }
+        }
+
+        private static boolean matches(String key, CharSequence text, int start, int end) {
+            if (key.length() != end - start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (key.charAt(i - start) != Character.toLowerCase(text.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void insert(int slot, String term, int count) {
+            mKeys[slot] = term;
+            mCounts[slot] = count;
+            if (++mSize * 2 > mKeys.length) {
+                String[] keys = mKeys;
+                int[] counts = mCounts;
+                mKeys = new String[keys.length * 2];
+                mCounts = new int[keys.length * 2];
+                mSize = 0;
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] != null) {
+                        add(keys[i], counts[i]);
+                    }
+                }
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+
+    /**
+     * The largest notes seen, by chars, largest first.
+     */
+    static final class Largest {
+        final long[] mIds = new long[TOP_NOTES];
+        final int[] mChars = new int[TOP_NOTES];
+        int mCount;
+
+        void add(long id, int chars) {
+            if (mCount == TOP_NOTES && chars <= mChars[TOP_NOTES - 1]) {
+                return;
+            }
+            int i = mCount < TOP_NOTES ? mCount++ : TOP_NOTES - 1;
+            while (i > 0 && mChars[i - 1] < chars) {
+                mIds[i] = mIds[i - 1];
+                mChars[i] = mChars[i - 1];
+                i--;
+            }
+            mIds[i] = id;
+            mChars[i] = chars;
+        }
+
+        void addAll(Largest other) {
+            for (int i = 0; i < other.mCount; i++) {
+                add(other.mIds[i], other.mChars[i]);
+            }
+        }
+    }
+
+    /**
+     * The figures of one chunk, or of all of them once merged.
+     */
+    static final class Partial {
+        long mNotes;
+        long mWords;
+        long mChars;
+        /** Notes per month, keyed by year * 12 + month. */
+        final SparseIntArray mMonths = new SparseIntArray();
+        final TermCounter mTerms = new TermCounter();
+        final Largest mLargest = new Largest();
+
+        void addAll(Partial other) {
+            mNotes += other.mNotes;
+            mWords += other.mWords;
+            mChars += other.mChars;
+            for (int i = 0; i < other.mMonths.size(); i++) {
+                final int month = other.mMonths.keyAt(i);
+                mMonths.put(month, mMonths.get(month) + other.mMonths.valueAt(i));
+            }
+            mTerms.addAll(other.mTerms);
+            mLargest.addAll(other.mLargest);
+        }
+    }
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final NoteArchive mArchive;
+
+    // Chunks whose partial is stale; written by the writer thread.
+    private final Object mDirtyLock = new Object();
+    private final HashSet<Long> mDirtyChunks = new HashSet<Long>();
+    private boolean mAllDirty = true;
+
+    // Only touched while holding mRefreshLock.
+    private final Object mRefreshLock = new Object();
+    private final TreeMap<Long, Partial> mChunks = new TreeMap<Long, Partial>();
+    private Partial mTotal;
+    private long mLastRefreshMillis;
+    private int mLastRefreshChunks;
+
+    CorpusStats(SQLiteOpenHelper openHelper, NoteArchive archive) {
+        mOpenHelper = openHelper;
+        mArchive = archive;
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "CorpusStats");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sPool;
+    }
+
+    /**
+     * Marks the chunks of changed notes stale. Called once their change has
+     * committed, so the next refresh reads it.
+     */
+    void onNotesChanged(Collection<Long> ids) {
+        synchronized (mDirtyLock) {
+            for (Long id : ids) {
+                mDirtyChunks.add(id >> CHUNK_SHIFT);
+            }
+        }
+    }
+
+    void onAllNotesChanged() {
+        synchronized (mDirtyLock) {
+            mAllDirty = true;
+        }
+    }
+
+    /**
+     * The statistics as rows of {@link Corpus}, brought up to date first.
+     * Blocks while stale chunks are aggregated; not for the main thread.
+     */
+    Cursor query() {
+        final Partial total = refresh();
+        MatrixCursor c = new MatrixCursor(COLUMNS);
+        c.addRow(new Object[] {
+                Corpus.KIND_TOTAL, "notes", total.mNotes
+        });
+        c.addRow(new Object[] {
+                Corpus.KIND_TOTAL, "words", total.mWords
+        });
+        c.addRow(new Object[] {
+                Corpus.KIND_TOTAL, "chars", total.mChars
+        });
+        // SparseIntArray keeps its keys sorted, so months come oldest first.
+        for (int i = 0; i < total.mMonths.size(); i++) {
+            final int month = total.mMonths.keyAt(i);
+            c.addRow(new Object[] {
+                    Corpus.KIND_MONTH,
+                    String.format(Locale.US, "%04d-%02d", month / 12, month % 12 + 1),
+                    total.mMonths.valueAt(i)
+            });
+        }
+        addTopTerms(c, total.mTerms);
+        for (int i = 0; i < total.mLargest.mCount; i++) {
+            c.addRow(new Object[] {
+                    Corpus.KIND_LARGEST, Long.toString(total.mLargest.mIds[i]),
+                    total.mLargest.mChars[i]
+            });
+        }
+        return c;
+    }
+
+    private static void addTopTerms(MatrixCursor c, TermCounter terms) {
+        final String[] top = new String[TOP_TERMS];
+        final int[] counts = new int[TOP_TERMS];
+        int n = 0;
+        for (int i = 0; i < terms.mKeys.length; i++) {
+            final int count = terms.mCounts[i];
+            if (terms.mKeys[i] == null || (n == TOP_TERMS && count <= counts[n - 1])) {
+                continue;
+            }
+            int j = n < TOP_TERMS ? n++ : n - 1;
+            while (j > 0 && counts[j - 1] < count) {
+                top[j] = top[j - 1];
+                counts[j] = counts[j - 1];
+                j--;
+            }
+            top[j] = terms.mKeys[i];
+            counts[j] = count;
+        }
+        for (int i = 0; i < n; i++) {
+            c.addRow(new Object[] {
+                    Corpus.KIND_TERM, top[i], counts[i]
+            });
+        }
+    }
+
+    private Partial refresh() {
+        synchronized (mRefreshLock) {
+            final boolean all;
+            final ArrayList<Long> dirty;
+            synchronized (mDirtyLock) {
+                all = mAllDirty;
+                dirty = new ArrayList<Long>(mDirtyChunks);
+                mAllDirty = false;
+                mDirtyChunks.clear();
+            }
+            if (!all && dirty.isEmpty() && mTotal != null) {
+                return mTotal;
+            }
+
+            final long start = SystemClock.elapsedRealtime();
+            boolean done = false;
+            try {
+                String selection = null;
+                if (all) {
+                    mChunks.clear();
+                } else {
+                    StringBuilder sb = new StringBuilder();
+                    for (Long chunk : dirty) {
+                        mChunks.remove(chunk);
+                        if (sb.length() > 0) {
+                            sb.append(" OR ");
+                        }
+                        sb.append(NoteColumns._ID).append(" BETWEEN ")
+                                .append(chunk << CHUNK_SHIFT).append(" AND ")
+                                .append(((chunk + 1) << CHUNK_SHIFT) - 1);
+                    }
+                    selection = sb.toString();
+                }
+                mLastRefreshChunks = aggregate(selection);
+
+                Partial total = new Partial();
+                for (Partial partial : mChunks.values()) {
+                    total.addAll(partial);
+                }
+                mTotal = total;
+                done = true;
+            } finally {
+                if (!done) {
+                    // Whatever was removed above has to be read again.
+                    if (all) {
+                        onAllNotesChanged();
+                    } else {
+                        onNotesChanged(dirty);
+                    }
+                }
+            }
+            mLastRefreshMillis = SystemClock.elapsedRealtime() - start;
+            return mTotal;
+        }
+    }
+
+    /**
+     * Streams the notes matching selection in id order and aggregates each
+     * chunk on the pool as soon as it is complete. At most two chunks per
+     * thread are held in memory. Returns the number of chunks aggregated.
+     */
+    private int aggregate(String selection) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        final String table = mArchive.isAttached() ? NoteArchive.ALL_NOTES : NOTES_TABLE;
+        final int maxPending = 2 * Runtime.getRuntime().availableProcessors();
+        final ArrayDeque<Future<Partial>> pending = new ArrayDeque<Future<Partial>>();
+        final ArrayDeque<Long> pendingChunks = new ArrayDeque<Long>();
+        int chunks = 0;
+
+        Cursor c = db.query(table, PROJECTION, selection, null, null, null, NoteColumns._ID);
+        try {
+            ArrayList<Object[]> rows = new ArrayList<Object[]>();
+            long chunk = -1;
+            while (true) {
+                final boolean more = c.moveToNext();
+                final long id = more ? c.getLong(0) : -1;
+                if (!rows.isEmpty() && (!more || (id >> CHUNK_SHIFT) != chunk)) {
+                    pending.add(pool().submit(new ChunkTask(rows)));
+                    pendingChunks.add(chunk);
+                    chunks++;
+                    rows = new ArrayList<Object[]>();
+                    if (pending.size() >= maxPending) {
+                        mChunks.put(pendingChunks.poll(), await(pending.poll()));
+                    }
+                }
+                if (!more) {
+                    break;
+                }
+                chunk = id >> CHUNK_SHIFT;
+                rows.add(new Object[] {
+                        id, c.getString(1), c.getLong(2)
+                });
+            }
+        } finally {
+            c.close();
+        }
+        while (!pending.isEmpty()) {
+            mChunks.put(pendingChunks.poll(), await(pending.poll()));
+        }
+        return chunks;
+    }
+
+    private static Partial await(Future<Partial> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to aggregate notes", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Aggregates the rows of one chunk: id, text and creation time.
+     */
+    private static final class ChunkTask implements Callable<Partial> {
+        private final ArrayList<Object[]> mRows;
+
+        ChunkTask(ArrayList<Object[]> rows) {
+            mRows = rows;
+        }
+
+        @Override
+        public Partial call() {
+            final Partial partial = new Partial();
+            final Calendar calendar = Calendar.getInstance();
+            for (Object[] row : mRows) {
+                final String text = (String) row[1];
+                final int chars = text == null ? 0 : text.length();
+                partial.mNotes++;
+                partial.mChars += chars;
+                partial.mLargest.add((Long) row[0], chars);
+                calendar.setTimeInMillis((Long) row[2]);
+                final int month = calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH);
+                partial.mMonths.put(month, partial.mMonths.get(month) + 1);
+                if (text != null) {
+                    partial.mWords += countWords(text, partial.mTerms);
+                }
+            }
+            return partial;
+        }
+    }
+
+    /**
+     * Counts the words of text and adds its terms to terms. Letters and
+     * digits make up words; each CJK character counts as a word of its own
+     * but not as a term.
+     */
+    static int countWords(String text, TermCounter terms) {
+        final int length = text.length();
+        int words = 0;
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            final char c = i < length ? text.charAt(i) : ' ';
+            final boolean cjk = NgramIndex.isCjk(c);
+            if (!cjk && Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+                continue;
+            }
+            if (start >= 0) {
+                words++;
+                final int termLength = i - start;
+                if (termLength >= MIN_TERM_LENGTH && termLength <= MAX_TERM_LENGTH) {
+                    terms.add(text, start, i);
+                }
+                start = -1;
+            }
+            if (cjk) {
+                words++;
+            }
+        }
+        return words;
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mDirtyLock) {
+            pw.print("Corpus stats: dirtyChunks=");
+            pw.print(mAllDirty ? "all" : Integer.toString(mDirtyChunks.size()));
+        }
+        pw.print(" lastRefresh=");
+        pw.print(mLastRefreshMillis);
+        pw.print("ms over ");
+        pw.print(mLastRefreshChunks);
+        pw.println(" chunks");
+    }
+}
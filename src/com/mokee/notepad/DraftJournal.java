@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * An append-only journal of the edits made to one note since it was last
+ * saved, so unsaved text survives a crash or the process being killed.
+ * <p>
+ * The journal starts with the content hash of the saved text the edits apply
+ * to, followed by one checksummed record per edit. Records are written on a
+ * background thread and synced to disk at most once per
+ * {@link #SYNC_DELAY_MS}; a torn record at the end is simply ignored on
+ * replay. Once the provider holds the text, the journal is truncated.
+ */
+final class DraftJournal {
+    private static final String TAG = "DraftJournal";
+
+    private static final String DIR_NAME = "drafts";
+    private static final int MAGIC = 0x4e444a31; // "NDJ1"
+
+    /** Edits are synced to disk in batches at most this far apart. */
+    private static final long SYNC_DELAY_MS = 1000;
+
+    /** No single edit is ever this large; a bigger length means corruption. */
+    private static final int MAX_RECORD_BYTES = 64 * 1024 * 1024;
+
+    private static Handler sHandler;
+
+    /**
+     * Receives the outcome of {@link #recover}, on the main thread.
+     */
+    interface RecoverCallback {
+        /** The recovered text, or null if there was nothing to recover. */
+        void onRecovered(String draft);
+    }
+
+    private final File mFile;
+
+    // Only touched on the journal thread.
+    private DataOutputStream mOut;
+    private FileOutputStream mFileOut;
+    private boolean mSyncPending;
+
+    // Only touched on the main thread.
+    private long mBaseHash;
+    private boolean mStarted;
+    private boolean mAppended;
+    private boolean mClosed;
+
+    DraftJournal(Context context, long noteId) {
+        mFile = new File(new File(context.getFilesDir(), DIR_NAME), noteId + ".journal");
+    }
+
+    private static synchronized Handler handler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    /**
+     * Replays the journal onto saved, the text of the note in the provider,
+     * on the journal thread. The callback gets the recovered text, or null
+     * if there is nothing to recover or the journal was written against a
+     * different version of the note; it is not called once the journal is
+     * closed. A recovered journal is rewritten as a single edit and left
+     * started, so a torn record at its end never hides the edits appended
+     * after it.
+     */
+    void recover(final String saved, final long savedHash, final RecoverCallback callback) {
+        final Handler main = new Handler();
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                final String recovered = read(saved, savedHash);
+                if (recovered != null) {
+                    openOutput(savedHash);
+                    writeRecord(encode(0, saved.length(), recovered));
+                }
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mClosed) {
+                            return;
+                        }
+                        if (recovered != null) {
+                            mBaseHash = savedHash;
+                            mStarted = true;
+                            mAppended = true;
+                        }
+                        callback.onRecovered(recovered);
+                    }
+                });
+            }
+        });
+    }
+
+    /** Runs on the journal thread. */
+    private String read(String saved, long savedHash) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readLong() != savedHash) {
+                return null;
+            }
+            StringBuilder text = new StringBuilder(saved);
+            int records = 0;
+            CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                final byte[] payload;
+                try {
+                    length = in.readInt();
+                    if (length < 8 || length > MAX_RECORD_BYTES) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // The last record was torn; everything before it is good.
+                    break;
+                }
+                if (!apply(text, payload)) {
+                    break;
+                }
+                records++;
+            }
+            if (records == 0) {
+                return null;
+            }
+            Log.i(TAG, "Recovered " + records + " edits from " + mFile.getName());
+            return text.toString();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable journal " + mFile, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static boolean apply(StringBuilder text, byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        final int start = in.readInt();
+        final int removed = in.readInt();
+        final int inserted = (payload.length - 8) / 2;
+        if (start < 0 || removed < 0 || start + removed > text.length()) {
+            return false;
+        }
+        char[] chars = new char[inserted];
+        for (int i = 0; i < inserted; i++) {
+            chars[i] = in.readChar();
+        }
+        text.replace(start, start + removed, new String(chars));
+        return true;
+    }
+
+    /**
+     * Starts journaling edits against the saved text with the given hash. If
+     * the journal already runs against that text, later edits are appended;
+     * otherwise it is truncated first.
+     */
+    void start(long baseHash) {
+        if (mStarted && mBaseHash == baseHash) {
+            return;
+        }
+        reset(baseHash);
+    }
+
+    /**
+     * Truncates the journal once the text with the given hash is saved.
+     */
+    void reset(final long baseHash) {
+        mBaseHash = baseHash;
+        mStarted = true;
+        mAppended = false;
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                openOutput(baseHash);
+            }
+        });
+    }
+
+    /** Runs on the journal thread. */
+    private void openOutput(long baseHash) {
+        closeOutput();
+        try {
+            mFile.getParentFile().mkdirs();
+            mFileOut = new FileOutputStream(mFile);
+            mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+            mOut.writeInt(MAGIC);
+            mOut.writeLong(baseHash);
+            scheduleSync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to start journal " + mFile, e);
+            closeOutput();
+        }
+    }
+
+    /**
+     * Logs that removed chars at start were replaced by inserted. Only the
+     * inserted text is copied on the calling thread.
+     */
+    void append(int start, int removed, CharSequence inserted) {
+        if (!mStarted) {
+            return;
+        }
+        mAppended = true;
+        final byte[] payload = encode(start, removed, inserted);
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                writeRecord(payload);
+            }
+        });
+    }
+
+    /** Runs on the journal thread. */
+    private void writeRecord(byte[] payload) {
+        if (mOut == null) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        try {
+            mOut.writeInt(payload.length);
+            mOut.write(payload);
+            mOut.writeInt((int) crc.getValue());
+            scheduleSync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to journal " + mFile, e);
+            closeOutput();
+        }
+    }
+
+    /**
+     * Whether any edit was logged since the journal was last truncated.
+     */
+    boolean hasEdits() {
+        return mAppended;
+    }
+
+    private static byte[] encode(int start, int removed, CharSequence inserted) {
+        final int length = inserted.length();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + 2 * length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(start);
+            out.writeInt(removed);
+            for (int i = 0; i < length; i++) {
+                out.writeChar(inserted.charAt(i));
+            }
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void scheduleSync() {
+        if (!mSyncPending) {
+            mSyncPending = true;
+            handler().postDelayed(mSync, SYNC_DELAY_MS);
+        }
+    }
+
+    private final Runnable mSync = new Runnable() {
+        @Override
+        public void run() {
+            mSyncPending = false;
+            sync();
+        }
+    };
+
+    /** Runs on the journal thread. */
+    private void sync() {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.flush();
+            mFileOut.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to sync journal " + mFile, e);
+            closeOutput();
+        }
+    }
+
+    /**
+     * Syncs whatever was appended so far without waiting for the next batch,
+     * e.g. when the editor goes to the background.
+     */
+    void flush() {
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                sync();
+            }
+        });
+    }
+
+    /**
+     * Closes and removes the journal, once nothing in it is worth keeping.
+     */
+    void delete() {
+        mStarted = false;
+        mAppended = false;
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+                mFile.delete();
+            }
+        });
+    }
+
+    /**
+     * Syncs and closes the journal but keeps it, e.g. when the editor is
+     * destroyed to be recreated and a new one takes the file over.
+     */
+    void close() {
+        mStarted = false;
+        mClosed = true;
+        handler().post(new Runnable() {
+            @Override
+            public void run() {
+                closeOutput();
+            }
+        });
+    }
+
+    /** Runs on the journal thread. */
+    private void closeOutput() {
+        if (mOut != null) {
+            sync();
+        }
+        closeQuietly(mOut);
+        mOut = null;
+        mFileOut = null;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Nothing useful to do here.
+            }
+        }
+    }
+}
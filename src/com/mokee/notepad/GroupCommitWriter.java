@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Runs every write of {@link NotePadProvider} on one writer thread. Writes
+ * that queue up while a transaction is running, or arrive within a short
+ * window after the first one, are committed together in one transaction, so
+ * concurrent writers share a single journal sync instead of each paying for
+ * their own and fighting over the database lock. A caller blocks until the
+ * transaction holding its write has committed.
+ * <p>
+ * If any write in a group fails, the group is rolled back and its writes are
+ * retried one transaction each, so a failure only reaches its own caller.
+ * Whatever the writes of a rolled back transaction collected for after the
+ * commit, e.g. change notifications, is dropped through the
+ * {@link Listener}, so a retried write does not count twice and a failed one
+ * does not notify.
+ */
+final class GroupCommitWriter {
+    private static final String TAG = "GroupCommitWriter";
+
+    /** Most writes committed in one transaction. */
+    private static final int MAX_GROUP_SIZE = 64;
+
+    /**
+     * How long the writer waits for more writes after the first one of a
+     * group. Only applied while writes are actually arriving concurrently, so
+     * a lone writer never pays for it.
+     */
+    private static final long GROUP_WINDOW_MICROS = 2000;
+
+    /**
+     * A unit of work run on the writer thread, inside the group transaction.
+     */
+    interface Write<T> {
+        T run() throws Exception;
+    }
+
+    /**
+     * Called on the writer thread when a transaction ends, to act on what its
+     * writes collected along the way.
+     */
+    interface Listener {
+        /** The writes committed, e.g. send the notifications they collected. */
+        void onCommitted();
+
+        /** The writes were rolled back; drop whatever they collected. */
+        void onRolledBack();
+    }
+
+    /**
+     * Carries a checked exception thrown by a write back to its caller.
+     */
+    static final class WriteException extends RuntimeException {
+        WriteException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    private static final class Request {
+        final Write<?> mWrite;
+        final long mSubmitNanos = System.nanoTime();
+        final CountDownLatch mDone = new CountDownLatch(1);
+        Object mResult;
+        Throwable mError;
+
+        Request(Write<?> write) {
+            mWrite = write;
+        }
+    }
+
+    private final SQLiteOpenHelper mOpenHelper;
+    private final Listener mListener;
+    private final LinkedBlockingQueue<Request> mQueue = new LinkedBlockingQueue<Request>();
+    private final Thread mThread;
+
+    // Reported by dump(); latency is from submission until durable.
+    private final AtomicLong mWrites = new AtomicLong();
+    private final AtomicLong mGroups = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mMaxGroupSize = new AtomicLong();
+    private final AtomicLong mMaxLatencyNanos = new AtomicLong();
+    private final AtomicLong mFirstWriteTime = new AtomicLong();
+    private final AtomicLong mLastWriteTime = new AtomicLong();
+    private final AtomicLongArray mLatencyBuckets =
+            new AtomicLongArray(ProviderStats.BUCKET_COUNT);
+
+    // Only touched on the writer thread.
+    private int mLastGroupSize;
+
+    GroupCommitWriter(SQLiteOpenHelper openHelper, Listener listener) {
+        mOpenHelper = openHelper;
+        mListener = listener;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+                loop();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    boolean isWriterThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Runs write on the writer thread and waits until it is committed. A
+     * write issued from the writer thread itself, e.g. by an operation of a
+     * batch, simply runs inline as part of the current group.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T submit(Write<T> write) {
+        if (isWriterThread()) {
+            try {
+                return write.run();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new WriteException(e);
+            }
+        }
+        Request request = new Request(write);
+        mQueue.add(request);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                request.mDone.await();
+                break;
+            } catch (InterruptedException e) {
+                // The write is queued; it has to be seen through.
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (request.mError instanceof RuntimeException) {
+            throw (RuntimeException) request.mError;
+        } else if (request.mError instanceof Error) {
+            throw (Error) request.mError;
+        } else if (request.mError != null) {
+            throw new WriteException(request.mError);
+        }
+        return (T) request.mResult;
+    }
+
+    private void loop() {
+        final ArrayList<Request> group = new ArrayList<Request>(MAX_GROUP_SIZE);
+        while (true) {
+            try {
+                group.add(mQueue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            collect(group);
+            runGroup(group);
+            mLastGroupSize = group.size();
+            group.clear();
+        }
+    }
+
+    /**
+     * Adds whatever else is queued to group, waiting out the group window if
+     * the previous group showed concurrent writers.
+     */
+    private void collect(ArrayList<Request> group) {
+        mQueue.drainTo(group, MAX_GROUP_SIZE - group.size());
+        if (mLastGroupSize <= 1 && group.size() == 1) {
+            return;
+        }
+        final long deadline = System.nanoTime() + GROUP_WINDOW_MICROS * 1000;
+        while (group.size() < MAX_GROUP_SIZE) {
+            final long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+                break;
+            }
+            Request next;
+            try {
+                next = mQueue.poll(wait, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (next == null) {
+                break;
+            }
+            group.add(next);
+            mQueue.drainTo(group, MAX_GROUP_SIZE - group.size());
+        }
+    }
+
+    private void runGroup(ArrayList<Request> group) {
+        final SQLiteDatabase db;
+        try {
+            db = mOpenHelper.getWritableDatabase();
+        } catch (RuntimeException e) {
+            for (Request request : group) {
+                request.mError = e;
+                finish(request);
+            }
+            return;
+        }
+
+        boolean committed = false;
+        Throwable failure = null;
+        db.beginTransaction();
+        try {
+            for (Request request : group) {
+                request.mResult = request.mWrite.run();
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            try {
+                db.endTransaction();
+            } catch (RuntimeException e) {
+                // The commit itself failed; nothing in the group is durable.
+                Log.w(TAG, "Group commit failed", e);
+                committed = false;
+            }
+        }
+
+        if (committed) {
+            mListener.onCommitted();
+        } else {
+            mListener.onRolledBack();
+            if (group.size() == 1 && failure != null) {
+                // Nothing to tell apart; the write failed on its own.
+                group.get(0).mResult = null;
+                group.get(0).mError = failure;
+            } else {
+                // Find the failing write without failing the others with it.
+                mRetries.incrementAndGet();
+                for (Request request : group) {
+                    request.mResult = null;
+                    request.mError = null;
+                    if (runAlone(db, request)) {
+                        mListener.onCommitted();
+                    } else {
+                        mListener.onRolledBack();
+                    }
+                }
+            }
+        }
+        mGroups.incrementAndGet();
+        long max;
+        do {
+            max = mMaxGroupSize.get();
+        } while (group.size() > max && !mMaxGroupSize.compareAndSet(max, group.size()));
+        for (Request request : group) {
+            finish(request);
+        }
+    }
+
+    /**
+     * Runs request in a transaction of its own. Returns whether it committed.
+     */
+    private static boolean runAlone(SQLiteDatabase db, Request request) {
+        db.beginTransaction();
+        try {
+            request.mResult = request.mWrite.run();
+            db.setTransactionSuccessful();
+        } catch (Throwable t) {
+            request.mError = t;
+        } finally {
+            try {
+                db.endTransaction();
+            } catch (RuntimeException e) {
+                request.mError = e;
+            }
+        }
+        return request.mError == null;
+    }
+
+    private void finish(Request request) {
+        final long nanos = System.nanoTime() - request.mSubmitNanos;
+        final long now = SystemClock.elapsedRealtime();
+        mFirstWriteTime.compareAndSet(0, now);
+        mLastWriteTime.set(now);
+        mWrites.incrementAndGet();
+        mLatencyBuckets.incrementAndGet(ProviderStats.bucketFor(nanos));
+        long max;
+        do {
+            max = mMaxLatencyNanos.get();
+        } while (nanos > max && !mMaxLatencyNanos.compareAndSet(max, nanos));
+        request.mDone.countDown();
+    }
+
+    private long percentileMicros(long writes, int percent) {
+        final long wanted = (writes * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < ProviderStats.BUCKET_COUNT; i++) {
+            seen += mLatencyBuckets.get(i);
+            if (seen >= wanted) {
+                return ProviderStats.bucketLimitMicros(i);
+            }
+        }
+        return ProviderStats.bucketLimitMicros(ProviderStats.BUCKET_COUNT - 1);
+    }
+
+    void dump(PrintWriter pw) {
+        final long writes = mWrites.get();
+        final long groups = mGroups.get();
+        pw.println("Group commit:");
+        pw.print("  writes=");
+        pw.print(writes);
+        pw.print(" groups=");
+        pw.print(groups);
+        pw.print(" retried=");
+        pw.print(mRetries.get());
+        pw.print(" maxGroup=");
+        pw.print(mMaxGroupSize.get());
+        if (groups > 0) {
+            pw.print(" avgGroup=");
+            pw.print(String.format("%.2f", (double) writes / groups));
+        }
+        pw.println();
+        if (writes == 0) {
+            return;
+        }
+        final long span = mLastWriteTime.get() - mFirstWriteTime.get();
+        pw.print("  throughput=");
+        pw.print(span > 0 ? String.format("%.1f", writes * 1000.0 / span) : "-");
+        pw.print(" writes/s latency p50<=");
+        pw.print(percentileMicros(writes, 50));
+        pw.print("us p99<=");
+        pw.print(percentileMicros(writes, 99));
+        pw.print("us max=");
+        pw.print(mMaxLatencyNanos.get() / 1000);
+        pw.println("us");
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Looper;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * Debug aid that traces provider calls made from the main thread. UI code
+ * routes its ContentResolver calls through here with a call site label; when
+ * the watchdog is enabled every call on the main thread is timed and
+ * aggregated per call site, and in fatal mode it throws instead, so new
+ * UI-thread I/O fails tests before it ships.
+ * <p>
+ * The mode is read from the {@code debug.notepad.iowatch} system property
+ * ("trace" or "fatal") and can be overridden with {@link #setMode(int)}.
+ */
+@SuppressWarnings("deprecation")
+final class IoWatchdog {
+    private static final String TAG = "IoWatchdog";
+
+    static final int MODE_OFF = 0;
+    static final int MODE_TRACE = 1;
+    static final int MODE_FATAL = 2;
+
+    private static final String PROP_MODE = "debug.notepad.iowatch";
+
+    private static volatile int sMode = readMode();
+
+    private static final LinkedHashMap<String, Site> sSites = new LinkedHashMap<String, Site>();
+
+    /**
+     * Aggregated main-thread provider calls of one call site.
+     */
+    private static final class Site {
+        int calls;
+        long totalNanos;
+        long maxNanos;
+        long rows;
+        long bytes;
+    }
+
+    // This class cannot be instantiated
+    private IoWatchdog() {
+    }
+
+    private static int readMode() {
+        String mode = SystemProperties.get(PROP_MODE, "");
+        if ("fatal".equals(mode)) {
+            return MODE_FATAL;
+        } else if ("trace".equals(mode)) {
+            return MODE_TRACE;
+        }
+        return MODE_OFF;
+    }
+
+    static void setMode(int mode) {
+        sMode = mode;
+    }
+
+    static boolean isEnabled() {
+        return sMode != MODE_OFF;
+    }
+
+    /**
+     * Returns the start time to hand to {@link #end}, or 0 if the call is not
+     * traced. Throws in fatal mode.
+     */
+    private static long begin(String site) {
+        if (sMode == MODE_OFF || Looper.myLooper() != Looper.getMainLooper()) {
+            return 0;
+        }
+        if (sMode == MODE_FATAL) {
+            throw new IllegalStateException("Provider I/O on the main thread at " + site);
+        }
+        return System.nanoTime();
+    }
+
+    private static void end(String site, long start, long rows, long bytes) {
+        if (start == 0) {
+            return;
+        }
+        final long nanos = System.nanoTime() - start;
+        Log.w(TAG, site + ": " + (nanos / 1000) + "us on the main thread, rows=" + rows
+                + " bytes=" + bytes);
+        synchronized (sSites) {
+            Site s = sSites.get(site);
+            if (s == null) {
+                s = new Site();
+                sSites.put(site, s);
+            }
+            s.calls++;
+            s.totalNanos += nanos;
+            s.maxNanos = Math.max(s.maxNanos, nanos);
+            s.rows += rows;
+            s.bytes += bytes;
+        }
+    }
+
+    private static long noteBytes(ContentValues values) {
+        return values == null ? 0 : ProviderStats.bytesOf(values.getAsString(NoteColumns.NOTE));
+    }
+
+    static Cursor managedQuery(Activity activity, String site, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
+        final long start = begin(site);
+        Cursor c = activity.managedQuery(uri, projection, selection, selectionArgs, sortOrder);
+        end(site, start, c != null && start != 0 ? c.getCount() : 0, 0);
+        return c;
+    }
+
+    static Cursor query(ContentResolver cr, String site, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
+        final long start = begin(site);
+        Cursor c = cr.query(uri, projection, selection, selectionArgs, sortOrder);
+        end(site, start, c != null && start != 0 ? c.getCount() : 0, 0);
+        return c;
+    }
+
+    static boolean requery(Cursor cursor, String site) {
+        final long start = begin(site);
+        boolean result = cursor.requery();
+        end(site, start, result && start != 0 ? cursor.getCount() : 0, 0);
+        return result;
+    }
+
+    static Uri insert(ContentResolver cr, String site, Uri uri, ContentValues values) {
+        final long start = begin(site);
+        Uri result = cr.insert(uri, values);
+        end(site, start, result != null ? 1 : 0, noteBytes(values));
+        return result;
+    }
+
+    static int update(ContentResolver cr, String site, Uri uri, ContentValues values,
+            String where, String[] selectionArgs) {
+        final long start = begin(site);
+        int count = cr.update(uri, values, where, selectionArgs);
+        end(site, start, count, noteBytes(values));
+        return count;
+    }
+
+    static int delete(ContentResolver cr, String site, Uri uri, String where,
+            String[] selectionArgs) {
+        final long start = begin(site);
+        int count = cr.delete(uri, where, selectionArgs);
+        end(site, start, count, 0);
+        return count;
+    }
+
+    /**
+     * Writes the per call site report, in the order the sites were first seen.
+     */
+    static void dump(PrintWriter pw) {
+        pw.println("Main-thread provider I/O (mode=" + sMode + "):");
+        synchronized (sSites) {
+            if (sSites.isEmpty()) {
+                pw.println("  none");
+                return;
+            }
+            for (Map.Entry<String, Site> e : sSites.entrySet()) {
+                Site s = e.getValue();
+                pw.print("  ");
+                pw.print(e.getKey());
+                pw.print(": calls=");
+                pw.print(s.calls);
+                pw.print(" total=");
+                pw.print(s.totalNanos / 1000);
+                pw.print("us max=");
+                pw.print(s.maxNanos / 1000);
+                pw.print("us rows=");
+                pw.print(s.rows);
+                pw.print(" bytes=");
+                pw.println(s.bytes);
+            }
+        }
+    }
+
+    static void reset() {
+        synchronized (sSites) {
+            sSites.clear();
+        }
+    }
+}
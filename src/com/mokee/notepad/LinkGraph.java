@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.mokee.notepad.NotePad.Links;
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * The graph of {@code [[Title]]} references between notes. Each reference is
+ * an edge from the note it appears in to the note with that title, or a
+ * dangling edge while no such note exists. Edges are indexed by source, by
+ * target and by title, so the links of a note, its backlinks and the edges a
+ * new title resolves are all found without looking at other notes' text.
+ * <p>
+ * A title is matched case insensitively; if several notes share it, the
+ * oldest one is the target. While the archive is attached, archived notes are
+ * targets too.
+ */
+final class LinkGraph {
+
+    static final String TABLE = "note_links";
+
+    private static final String NOTES_TABLE = "main.notes";
+
+    /** The title index, which both note tiers have. */
+    static final String TITLE_INDEX = "notes_title";
+
+    private static final Pattern REFERENCE = Pattern.compile("\\[\\[([^\\[\\]\\n]+)\\]\\]");
+
+    /** Longer references are not titles anyone typed. */
+    private static final int MAX_TITLE_LENGTH = 200;
+
+    // This class cannot be instantiated
+    private LinkGraph() {
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + Links._ID + " INTEGER PRIMARY KEY,"
+                + Links.SOURCE_ID + " INTEGER NOT NULL,"
+                + Links.TARGET_TITLE + " TEXT NOT NULL COLLATE NOCASE,"
+                + Links.TARGET_ID + " INTEGER,"
+                + "UNIQUE (" + Links.SOURCE_ID + "," + Links.TARGET_TITLE + ")"
+                + ");");
+        db.execSQL("CREATE INDEX note_links_target ON " + TABLE + " (" + Links.TARGET_ID
+                + ");");
+        db.execSQL("CREATE INDEX note_links_title ON " + TABLE + " (" + Links.TARGET_TITLE
+                + ");");
+        // Resolving a title must not scan the notes either.
+        db.execSQL("CREATE INDEX " + TITLE_INDEX + " ON notes (" + NoteColumns.TITLE
+                + " COLLATE NOCASE);");
+    }
+
+    /**
+     * The distinct titles referenced by text, keyed case insensitively.
+     */
+    static TreeMap<String, String> references(String text) {
+        TreeMap<String, String> titles = new TreeMap<String, String>();
+        if (text == null || text.indexOf("[[") < 0) {
+            return titles;
+        }
+        Matcher m = REFERENCE.matcher(text);
+        while (m.find()) {
+            String title = m.group(1).trim();
+            if (title.length() > 0 && title.length() <= MAX_TITLE_LENGTH) {
+                String key = title.toLowerCase(Locale.ROOT);
+                if (!titles.containsKey(key)) {
+                    titles.put(key, title);
+                }
+            }
+        }
+        return titles;
+    }
+
+    /**
+     * Brings the edges of one note in line with its current title and text:
+     * its outgoing edges are diffed against the references in the text, and
+     * edges that named its old or new title are resolved again. archived
+     * tells whether the archive is attached.
+     */
+    static void update(SQLiteDatabase db, boolean archived, long noteId, String title,
+            String text) {
+        TreeMap<String, String> wanted = references(text);
+        Cursor c = db.query(TABLE, new String[] {
+                Links._ID, Links.TARGET_TITLE
+        }, Links.SOURCE_ID + "=" + noteId, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String key = c.getString(1).toLowerCase(Locale.ROOT);
+                if (wanted.remove(key) == null) {
+                    db.delete(TABLE, Links._ID + "=" + c.getLong(0), null);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        for (String target : wanted.values()) {
+            ContentValues values = new ContentValues();
+            values.put(Links.SOURCE_ID, noteId);
+            values.put(Links.TARGET_TITLE, target);
+            long targetId = resolve(db, archived, target);
+            if (targetId >= 0) {
+                values.put(Links.TARGET_ID, targetId);
+            }
+            db.insert(TABLE, null, values);
+        }
+
+        // Edges that pointed here by a title the note no longer has.
+        retarget(db, archived, Links.TARGET_ID + "=" + noteId + " AND " + Links.TARGET_TITLE
+                + "<>?", new String[] {
+                    title == null ? "" : title
+                });
+        // Dangling edges this note's title now resolves.
+        if (title != null && title.length() > 0) {
+            retarget(db, archived, Links.TARGET_ID + " IS NULL AND " + Links.TARGET_TITLE + "=?",
+                    new String[] {
+                        title
+                    });
+        }
+    }
+
+    /**
+     * Drops the edges of deleted notes and resolves the edges that pointed
+     * at them again, usually leaving them dangling.
+     */
+    static void onDeleted(SQLiteDatabase db, boolean archived, String ids) {
+        db.delete(TABLE, Links.SOURCE_ID + " IN (" + ids + ")", null);
+        retarget(db, archived, Links.TARGET_ID + " IN (" + ids + ")", null);
+    }
+
+    private static void retarget(SQLiteDatabase db, boolean archived, String where,
+            String[] whereArgs) {
+        db.execSQL("UPDATE " + TABLE + " SET " + Links.TARGET_ID + "="
+                + targetId(archived, TABLE + "." + Links.TARGET_TITLE) + " WHERE " + where,
+                whereArgs == null ? new Object[0] : whereArgs);
+    }
+
+    private static long resolve(SQLiteDatabase db, boolean archived, String title) {
+        Cursor c = db.rawQuery("SELECT " + targetId(archived, "?"), archived
+                ? new String[] {
+                        title, title
+                }
+                : new String[] {
+                    title
+                });
+        try {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * The id of the oldest note titled by the SQL expression title, or NULL.
+     * With the archive attached, each tier answers with one seek of its title
+     * index and the smaller id wins.
+     */
+    private static String targetId(boolean archived, String title) {
+        final String hot = firstId(NOTES_TABLE, title);
+        if (!archived) {
+            return hot;
+        }
+        return "(SELECT MIN(" + NoteColumns._ID + ") FROM (SELECT " + hot + " AS "
+                + NoteColumns._ID + " UNION ALL SELECT " + firstId(NoteArchive.TABLE, title)
+                + "))";
+    }
+
+    private static String firstId(String table, String title) {
+        return "(SELECT " + NoteColumns._ID + " FROM " + table + " WHERE " + NoteColumns.TITLE
+                + "=" + title + " COLLATE NOCASE ORDER BY " + NoteColumns._ID + " LIMIT 1)";
+    }
+}
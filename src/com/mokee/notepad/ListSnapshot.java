@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * A small persisted copy of the first screen of {@link NotesList} rows (id,
+ * title, modified), so a cold start can draw the list before the database is
+ * even opened. The live query replaces it as soon as it completes.
+ */
+final class ListSnapshot {
+    private static final String TAG = "ListSnapshot";
+
+    private static final String FILE_NAME = "list_snapshot";
+    private static final int MAGIC = 0x4e4c5331; // "NLS1"
+
+    /** Rows kept in the snapshot; comfortably more than one screen. */
+    static final int MAX_ROWS = 20;
+
+    /** Only the visible part of a title is worth keeping. */
+    private static final int MAX_TITLE_LENGTH = 200;
+
+    /** The columns of the snapshot cursor, same order as the list projection. */
+    static final String[] COLUMNS = new String[] {
+            NoteColumns._ID,
+            NoteColumns.TITLE,
+            NoteColumns.MODIFIED_DATE,
+    };
+
+    private final long[] mIds;
+    private final String[] mTitles;
+    private final long[] mModified;
+
+    private ListSnapshot(long[] ids, String[] titles, long[] modified) {
+        mIds = ids;
+        mTitles = titles;
+        mModified = modified;
+    }
+
+    /**
+     * Copies the first rows out of a list cursor. This is cheap and must run
+     * on the thread owning the cursor; the copy can then be written anywhere.
+     */
+    static ListSnapshot from(Cursor cursor) {
+        final int count = Math.min(cursor.getCount(), MAX_ROWS);
+        final int idColumn = cursor.getColumnIndexOrThrow(NoteColumns._ID);
+        final int titleColumn = cursor.getColumnIndexOrThrow(NoteColumns.TITLE);
+        final int modifiedColumn = cursor.getColumnIndexOrThrow(NoteColumns.MODIFIED_DATE);
+        long[] ids = new long[count];
+        String[] titles = new String[count];
+        long[] modified = new long[count];
+        final int position = cursor.getPosition();
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            ids[i] = cursor.getLong(idColumn);
+            String title = cursor.getString(titleColumn);
+            if (title != null && title.length() > MAX_TITLE_LENGTH) {
+                title = title.substring(0, MAX_TITLE_LENGTH);
+            }
+            titles[i] = title;
+            modified[i] = cursor.getLong(modifiedColumn);
+        }
+        cursor.moveToPosition(position);
+        return new ListSnapshot(ids, titles, modified);
+    }
+
+    /**
+     * Reads the snapshot written by a previous run, or returns null.
+     */
+    static MatrixCursor read(Context context) {
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            final int count = in.readInt();
+            MatrixCursor c = new MatrixCursor(COLUMNS, count);
+            for (int i = 0; i < count; i++) {
+                final long id = in.readLong();
+                final String title = in.readBoolean() ? in.readUTF() : null;
+                final long modified = in.readLong();
+                c.addRow(new Object[] {
+                        id, title, modified
+                });
+            }
+            return c;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring unreadable snapshot", e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the snapshot in the background. Writes are serialized and go to
+     * a temporary file first, so a reader never sees a partial snapshot.
+     */
+    void writeAsync(Context context) {
+        final File dir = context.getFilesDir();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(dir);
+            }
+        });
+    }
+
+    private void write(File dir) {
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(mIds.length);
+            for (int i = 0; i < mIds.length; i++) {
+                out.writeLong(mIds[i]);
+                out.writeBoolean(mTitles[i] != null);
+                if (mTitles[i] != null) {
+                    out.writeUTF(mTitles[i]);
+                }
+                out.writeLong(mModified[i]);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(new File(dir, FILE_NAME))) {
+                Log.w(TAG, "Failed to replace snapshot");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write snapshot", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Nothing useful to do here.
+            }
+        }
+    }
+}
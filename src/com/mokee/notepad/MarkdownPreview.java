@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.SpannedString;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.BulletSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.URLSpan;
+import android.util.LruCache;
+
+/**
+ * Renders the lightweight markdown of a note into styled text for the read
+ * mode of {@link NoteEditor}.
+ * <p>
+ * A note is rendered block by block, a block being a run of lines between
+ * blank lines or a fenced code block. Rendered blocks are cached by their
+ * content hash, so after an edit only the blocks that changed are rendered
+ * again. The whole result is also cached per note under the note's content
+ * hash, so showing an unchanged note again renders nothing at all. Both
+ * caches live for the process and are safe to use from any thread.
+ */
+final class MarkdownPreview {
+
+    /** Notes whose whole preview is kept. */
+    private static final int MAX_NOTES = 16;
+
+    /** Chars of rendered blocks kept, across all notes. */
+    private static final int MAX_BLOCK_CHARS = 512 * 1024;
+
+    private static final String FENCE = "```";
+
+    private static final float[] HEADING_SIZES = new float[] {
+            1.5f, 1.4f, 1.3f, 1.2f, 1.1f, 1.0f
+    };
+
+    private static final int CODE_BACKGROUND = 0x20000000;
+
+    private static final class Rendered {
+        final long mHash;
+        final CharSequence mText;
+
+        Rendered(long hash, CharSequence text) {
+            mHash = hash;
+            mText = text;
+        }
+    }
+
+    private static final LruCache<Long, Rendered> sNotes = new LruCache<Long, Rendered>(MAX_NOTES);
+
+    private static final LruCache<Long, CharSequence> sBlocks =
+            new LruCache<Long, CharSequence>(MAX_BLOCK_CHARS) {
+                @Override
+                protected int sizeOf(Long key, CharSequence value) {
+                    return Math.max(1, value.length());
+                }
+            };
+
+    // This class cannot be instantiated
+    private MarkdownPreview() {
+    }
+
+    /**
+     * The preview of a note if it was rendered for exactly this content, or
+     * null. Cheap enough for the main thread.
+     */
+    static CharSequence getCached(long noteId, long contentHash) {
+        Rendered rendered = sNotes.get(noteId);
+        return rendered != null && rendered.mHash == contentHash ? rendered.mText : null;
+    }
+
+    /**
+     * Renders a note, reusing every block rendered before. Meant for a
+     * background thread.
+     */
+    static CharSequence render(long noteId, long contentHash, String text) {
+        CharSequence cached = getCached(noteId, contentHash);
+        if (cached != null) {
+            return cached;
+        }
+        SpannableStringBuilder out = new SpannableStringBuilder();
+        final String[] lines = text.split("\n", -1);
+        int start = 0;
+        while (start < lines.length) {
+            if (lines[start].trim().length() == 0) {
+                start++;
+                continue;
+            }
+            int end;
+            if (lines[start].trim().startsWith(FENCE)) {
+                end = start + 1;
+                while (end < lines.length && !lines[end].trim().startsWith(FENCE)) {
+                    end++;
+                }
+                end = Math.min(end + 1, lines.length);
+            } else {
+                end = start + 1;
+                while (end < lines.length && lines[end].trim().length() > 0
+                        && !lines[end].trim().startsWith(FENCE)) {
+                    end++;
+                }
+            }
+            if (out.length() > 0) {
+                out.append("\n\n");
+            }
+            out.append(block(lines, start, end));
+            start = end;
+        }
+        SpannedString result = new SpannedString(out);
+        sNotes.put(noteId, new Rendered(contentHash, result));
+        return result;
+    }
+
+    private static CharSequence block(String[] lines, int start, int end) {
+        StringBuilder source = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            source.append(lines[i]).append('\n');
+        }
+        final Long key = ContentHash.hash(source);
+        CharSequence rendered = sBlocks.get(key);
+        if (rendered == null) {
+            rendered = renderBlock(lines, start, end);
+            sBlocks.put(key, rendered);
+        }
+        return rendered;
+    }
+
+    private static CharSequence renderBlock(String[] lines, int start, int end) {
+        SpannableStringBuilder sb = new SpannableStringBuilder();
+        if (lines[start].trim().startsWith(FENCE)) {
+            int last = end;
+            if (last - 1 > start && lines[last - 1].trim().startsWith(FENCE)) {
+                last--;
+            }
+            for (int i = start + 1; i < last; i++) {
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                }
+                sb.append(lines[i]);
+            }
+            sb.setSpan(new TypefaceSpan("monospace"), 0, sb.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            sb.setSpan(new BackgroundColorSpan(CODE_BACKGROUND), 0, sb.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            return new SpannedString(sb);
+        }
+
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                sb.append('\n');
+            }
+            final String line = lines[i];
+            final String trimmed = line.trim();
+            final int lineStart = sb.length();
+            int level = 0;
+            while (level < trimmed.length() && level < HEADING_SIZES.length
+                    && trimmed.charAt(level) == '#') {
+                level++;
+            }
+            if (level > 0 && level < trimmed.length() && trimmed.charAt(level) == ' ') {
+                inline(sb, trimmed.substring(level + 1));
+                sb.setSpan(new RelativeSizeSpan(HEADING_SIZES[level - 1]), lineStart,
+                        sb.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                sb.setSpan(new StyleSpan(Typeface.BOLD), lineStart, sb.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else if (trimmed.startsWith("- ") || trimmed.startsWith("* ")
+                    || trimmed.startsWith("+ ")) {
+                inline(sb, trimmed.substring(2));
+                sb.setSpan(new BulletSpan(), lineStart, sb.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else if (trimmed.startsWith(">")) {
+                inline(sb, trimmed.substring(1).trim());
+                sb.setSpan(new QuoteSpan(), lineStart, sb.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else {
+                inline(sb, line);
+            }
+        }
+        return new SpannedString(sb);
+    }
+
+    /**
+     * Appends a line with its inline markup: **bold**, *italic* or _italic_,
+     * `code` and [text](url).
+     */
+    private static void inline(SpannableStringBuilder sb, String line) {
+        final int length = line.length();
+        int i = 0;
+        while (i < length) {
+            final char c = line.charAt(i);
+            int close;
+            if (c == '*' && line.startsWith("**", i)
+                    && (close = line.indexOf("**", i + 2)) > i + 2) {
+                styled(sb, line.substring(i + 2, close), new StyleSpan(Typeface.BOLD));
+                i = close + 2;
+            } else if ((c == '*' || c == '_') && (close = line.indexOf(c, i + 1)) > i + 1) {
+                styled(sb, line.substring(i + 1, close), new StyleSpan(Typeface.ITALIC));
+                i = close + 1;
+            } else if (c == '`' && (close = line.indexOf('`', i + 1)) > i + 1) {
+                final int start = sb.length();
+                sb.append(line, i + 1, close);
+                sb.setSpan(new TypefaceSpan("monospace"), start, sb.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                sb.setSpan(new BackgroundColorSpan(CODE_BACKGROUND), start, sb.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                i = close + 1;
+            } else if (c == '[' && (close = line.indexOf("](", i + 1)) > i + 1
+                    && line.indexOf(')', close + 2) > close + 2) {
+                final int end = line.indexOf(')', close + 2);
+                final int start = sb.length();
+                sb.append(line, i + 1, close);
+                sb.setSpan(new URLSpan(line.substring(close + 2, end)), start, sb.length(),
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                i = end + 1;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+    }
+
+    private static void styled(SpannableStringBuilder sb, String text, Object span) {
+        final int start = sb.length();
+        inline(sb, text);
+        sb.setSpan(span, start, sb.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * A substring index over the title and text of every note. Han, kana and
+ * Hangul text has no word boundaries to tokenize on, so the index holds
+ * n-grams instead: a bigram at every position touching a CJK character and a
+ * trigram everywhere else. Both are encoded as integers.
+ * <p>
+ * A query is split into grams the same way, and every note containing all
+ * of them is a candidate; candidates are then verified against the real
+ * text, so results are exact. The index matches ASCII letters case
+ * insensitively and everything else as is, like {@code LIKE}.
+ */
+final class NgramIndex {
+
+    static final String TABLE = "note_grams";
+    static final String NOTE_ID = "note_id";
+    static final String GRAM = "gram";
+
+    private static final long TRIGRAM_FLAG = 1L << 48;
+
+    private static final long[] NO_GRAMS = new long[0];
+
+    // This class cannot be instantiated
+    private NgramIndex() {
+    }
+
+    /**
+     * Creates the gram table. Lookups by gram use the primary key; lookups
+     * by note, for reindexing and deletes, use the second index.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + GRAM + " INTEGER NOT NULL,"
+                + NOTE_ID + " INTEGER NOT NULL,"
+                + "PRIMARY KEY (" + GRAM + "," + NOTE_ID + ")"
+                + ");");
+        db.execSQL("CREATE INDEX note_grams_note ON " + TABLE + " (" + NOTE_ID + ");");
+    }
+
+    static boolean isCjk(char c) {
+        return (c >= 0x2e80 && c <= 0x9fff) || (c >= 0xac00 && c <= 0xd7af)
+                || (c >= 0xf900 && c <= 0xfaff);
+    }
+
+    private static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * The distinct grams of text, sorted. A gram only depends on the chars it
+     * covers, so the grams of a substring are always among those of the text.
+     */
+    static long[] grams(CharSequence text) {
+        if (text == null || text.length() < 2) {
+            return NO_GRAMS;
+        }
+        final int length = text.length();
+        long[] grams = new long[length];
+        int count = 0;
+        for (int i = 0; i + 1 < length; i++) {
+            final char a = fold(text.charAt(i));
+            final char b = fold(text.charAt(i + 1));
+            if (isCjk(a) || isCjk(b)) {
+                grams[count++] = ((long) a << 16) | b;
+            } else if (i + 2 < length) {
+                final char c = fold(text.charAt(i + 2));
+                grams[count++] = TRIGRAM_FLAG | ((long) a << 32) | ((long) b << 16) | c;
+            }
+        }
+        return distinct(grams, count);
+    }
+
+    private static long[] distinct(long[] grams, int count) {
+        Arrays.sort(grams, 0, count);
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (n == 0 || grams[n - 1] != grams[i]) {
+                grams[n++] = grams[i];
+            }
+        }
+        return Arrays.copyOf(grams, n);
+    }
+
+    private static long[] union(long[] a, long[] b) {
+        long[] all = new long[a.length + b.length];
+        System.arraycopy(a, 0, all, 0, a.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        return distinct(all, all.length);
+    }
+
+    /**
+     * Brings the grams of a note in line with its title and text, writing
+     * only the grams that were added or removed.
+     */
+    static void index(SQLiteDatabase db, long noteId, String title, String note) {
+        final long[] wanted = union(grams(title), grams(note));
+        long[] existing = NO_GRAMS;
+        Cursor c = db.query(TABLE, new String[] {
+                GRAM
+        }, NOTE_ID + "=" + noteId, null, null, null, null);
+        try {
+            existing = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                existing[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        Arrays.sort(existing);
+
+        SQLiteStatement insert = null;
+        SQLiteStatement delete = null;
+        try {
+            int i = 0;
+            int j = 0;
+            while (i < wanted.length || j < existing.length) {
+                if (j == existing.length || (i < wanted.length && wanted[i] < existing[j])) {
+                    if (insert == null) {
+                        insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE + " ("
+                                + GRAM + "," + NOTE_ID + ") VALUES (?," + noteId + ")");
+                    }
+                    insert.bindLong(1, wanted[i++]);
+                    insert.execute();
+                } else if (i == wanted.length || existing[j] < wanted[i]) {
+                    if (delete == null) {
+                        delete = db.compileStatement("DELETE FROM " + TABLE + " WHERE "
+                                + GRAM + "=? AND " + NOTE_ID + "=" + noteId);
+                    }
+                    delete.bindLong(1, existing[j++]);
+                    delete.execute();
+                } else {
+                    i++;
+                    j++;
+                }
+            }
+        } finally {
+            if (insert != null) {
+                insert.close();
+            }
+            if (delete != null) {
+                delete.close();
+            }
+        }
+    }
+
+    /**
+     * Drops the grams of the notes of table matching a selection.
+     */
+    static void delete(SQLiteDatabase db, String table, String where, String[] whereArgs) {
+        db.delete(TABLE, NOTE_ID + " IN (SELECT " + NoteColumns._ID + " FROM " + table
+                + (where != null && where.length() > 0 ? " WHERE " + where : "") + ")",
+                whereArgs);
+    }
+
+    /**
+     * A selection on note ids matching only notes that contain every gram,
+     * or null if grams is empty and the index cannot narrow the search.
+     */
+    static String candidates(long[] grams) {
+        if (grams.length == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(NoteColumns._ID).append(" IN (SELECT ").append(NOTE_ID).append(" FROM ")
+                .append(TABLE).append(" WHERE ").append(GRAM).append(" IN (");
+        for (int i = 0; i < grams.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(grams[i]);
+        }
+        sb.append(") GROUP BY ").append(NOTE_ID).append(" HAVING COUNT(*)=")
+                .append(grams.length).append(')');
+        return sb.toString();
+    }
+
+    static void dump(SQLiteDatabase db, PrintWriter pw) {
+        pw.print("N-gram index: rows=");
+        pw.print(DatabaseUtils.queryNumEntries(db, TABLE));
+        pw.print(" grams=");
+        pw.print(DatabaseUtils.longForQuery(db, "SELECT COUNT(DISTINCT " + GRAM + ") FROM "
+                + TABLE, null));
+        pw.print(" notes=");
+        pw.println(DatabaseUtils.longForQuery(db, "SELECT COUNT(DISTINCT " + NOTE_ID
+                + ") FROM " + TABLE, null));
+    }
+}
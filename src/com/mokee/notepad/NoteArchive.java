@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.File;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemProperties;
+import android.text.format.DateUtils;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * The cold tier of notes. Notes that have not been modified for a while are
+ * moved, a batch per transaction, into a notes table of the same shape in a
+ * separate database file. That file is attached to the main connection only
+ * once it exists, so the default queries keep reading just the hot table.
+ * <p>
+ * Notes keep their ids in the archive, so tags and other references to them
+ * stay valid. Reads see archived notes through {@link #ALL_NOTES}; only a
+ * write to an archived note moves it back.
+ * <p>
+ * Every method that moves notes runs on the writer thread of
+ * {@link GroupCommitWriter}, inside its transaction.
+ */
+final class NoteArchive {
+
+    static final String DATABASE_NAME = "notepad_archive.db";
+    static final String SCHEMA = "archive";
+    static final String TABLE = SCHEMA + ".notes";
+    private static final String HOT_TABLE = "main.notes";
+
+    /** Days without modification before a note is archived; 0 disables it. */
+    private static final String PROP_ARCHIVE_DAYS = "debug.notepad.archive_days";
+    private static final int DEFAULT_ARCHIVE_DAYS = 365;
+
+    /** Notes moved per transaction, so writers are never held off for long. */
+    private static final int BATCH_SIZE = 200;
+
+    private static final String COLUMNS = NoteColumns._ID + "," + NoteColumns.TITLE + ","
+            + NoteColumns.NOTE + "," + NoteColumns.CREATED_DATE + ","
+            + NoteColumns.MODIFIED_DATE + "," + NoteColumns.CONTENT_HASH + ","
+            + NoteColumns.VERSION + "," + NoteColumns.SORT_KEY + "," + NoteColumns.DUE_AT;
+
+    /** Both tiers as one table, for the queries that span them. */
+    static final String ALL_NOTES = "(SELECT " + COLUMNS + " FROM " + HOT_TABLE
+            + " UNION ALL SELECT " + COLUMNS + " FROM " + TABLE + ") AS notes";
+
+    private final File mFile;
+    private volatile boolean mAttached;
+
+    NoteArchive(File file) {
+        mFile = file;
+    }
+
+    boolean isAttached() {
+        return mAttached;
+    }
+
+    /**
+     * Attaches the archive to db if it exists, or creates it if create is set.
+     * Must not be called inside a transaction.
+     */
+    synchronized boolean attach(SQLiteDatabase db, boolean create) {
+        if (mAttached) {
+            return true;
+        }
+        if (!create && !mFile.exists()) {
+            return false;
+        }
+        db.execSQL("ATTACH DATABASE ? AS " + SCHEMA, new Object[] {
+            mFile.getPath()
+        });
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                + NoteColumns._ID + " INTEGER PRIMARY KEY,"
+                + NoteColumns.TITLE + " TEXT,"
+                + NoteColumns.NOTE + " TEXT,"
+                + NoteColumns.CREATED_DATE + " INTEGER,"
+                + NoteColumns.MODIFIED_DATE + " INTEGER,"
+                + NoteColumns.CONTENT_HASH + " INTEGER,"
+                + NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 1,"
+                + NoteColumns.SORT_KEY + " TEXT,"
+                + NoteColumns.DUE_AT + " INTEGER"
+                + ");");
+        // Archives created before reminders existed.
+        if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + SCHEMA
+                + ".sqlite_master WHERE name='notes' AND sql LIKE '%" + NoteColumns.DUE_AT
+                + "%'", null) == 0) {
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN " + NoteColumns.DUE_AT
+                    + " INTEGER");
+        }
+        // Link targets are resolved in this tier too, by the same index.
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + SCHEMA + "." + LinkGraph.TITLE_INDEX
+                + " ON notes (" + NoteColumns.TITLE + " COLLATE NOCASE);");
+        mAttached = true;
+        return true;
+    }
+
+    static long cutoff(long now) {
+        final int days = SystemProperties.getInt(PROP_ARCHIVE_DAYS, DEFAULT_ARCHIVE_DAYS);
+        return days > 0 ? now - days * DateUtils.DAY_IN_MILLIS : -1;
+    }
+
+    /**
+     * Gets ready to archive the notes last modified before cutoff: attaches
+     * the archive, creating it only once there is something to put in it.
+     * Returns false if there is nothing to archive. Runs outside any
+     * transaction, since ATTACH cannot run inside one.
+     */
+    boolean prepare(SQLiteDatabase db, long cutoff) {
+        if (cutoff < 0) {
+            return false;
+        }
+        if (!mAttached && DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + HOT_TABLE
+                + " WHERE " + NoteColumns.MODIFIED_DATE + "<? AND " + NoteColumns.DUE_AT
+                + " IS NULL", new String[] {
+                    Long.toString(cutoff)
+                }) == 0) {
+            return false;
+        }
+        return attach(db, true);
+    }
+
+    /**
+     * Moves the next batch of notes last modified before cutoff into the
+     * archive, in the caller's transaction. Returns the number of notes
+     * moved; fewer than {@link #BATCH_SIZE} means none are left. Notes with
+     * a pending reminder stay hot, where {@link ReminderScheduler} looks for
+     * them.
+     */
+    int archiveBatch(SQLiteDatabase db, long cutoff) {
+        if (!mAttached) {
+            return 0;
+        }
+        String ids = selectIds(db, cutoff);
+        return ids == null ? 0 : move(db, HOT_TABLE, TABLE, ids);
+    }
+
+    static int batchSize() {
+        return BATCH_SIZE;
+    }
+
+    /**
+     * The ids of the next batch of notes to archive, as a comma separated
+     * list, or null if there are none.
+     */
+    private static String selectIds(SQLiteDatabase db, long cutoff) {
+        Cursor c = db.rawQuery("SELECT " + NoteColumns._ID + " FROM " + HOT_TABLE + " WHERE "
+                + NoteColumns.MODIFIED_DATE + "<? AND " + NoteColumns.DUE_AT + " IS NULL ORDER BY "
+                + NoteColumns.MODIFIED_DATE
+                + " LIMIT " + BATCH_SIZE, new String[] {
+                    Long.toString(cutoff)
+                });
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            StringBuilder sb = new StringBuilder();
+            do {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(c.getLong(0));
+            } while (c.moveToNext());
+            return sb.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int move(SQLiteDatabase db, String from, String to, String ids) {
+        final String where = " WHERE " + NoteColumns._ID + " IN (" + ids + ")";
+        db.execSQL("INSERT INTO " + to + " (" + COLUMNS + ") SELECT " + COLUMNS + " FROM "
+                + from + where);
+        return db.delete(from, NoteColumns._ID + " IN (" + ids + ")", null);
+    }
+
+    /**
+     * Moves a note back into the hot table if it is only in the archive,
+     * before it is written. Returns whether it was moved.
+     */
+    boolean restore(SQLiteDatabase db, long id) {
+        if (!mAttached) {
+            return false;
+        }
+        final String[] args = new String[] {
+            Long.toString(id)
+        };
+        if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE + " WHERE "
+                + NoteColumns._ID + "=?", args) == 0) {
+            return false;
+        }
+        move(db, TABLE, HOT_TABLE, Long.toString(id));
+        return true;
+    }
+
+    /**
+     * The id for a new note. The hot table would reuse the id of an archived
+     * note once every note above it is archived, so ids continue after the
+     * larger of both tiers. Returns -1 if the hot table may pick it. Must
+     * run in the transaction of the insert, so no archive batch moves the
+     * largest id in between.
+     */
+    long nextId(SQLiteDatabase db) {
+        if (!mAttached) {
+            return -1;
+        }
+        final long archived = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + NoteColumns._ID + "),0) FROM " + TABLE, null);
+        final long hot = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                + NoteColumns._ID + "),0) FROM " + HOT_TABLE, null);
+        return archived < hot ? -1 : archived + 1;
+    }
+}
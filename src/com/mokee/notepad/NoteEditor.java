@@ -16,9 +16,15 @@
 
 package com.mokee.notepad;
 
+import java.util.Calendar;
+
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.DatePickerDialog;
 import android.app.Dialog;
+import android.app.TimePickerDialog;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -29,17 +35,30 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.text.format.DateFormat;
+import android.text.format.DateUtils;
+import android.text.method.LinkMovementMethod;
 import android.text.util.Linkify;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewTreeObserver;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.DatePicker;
 import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.TimePicker;
+import android.widget.Toast;
 
+import com.mokee.notepad.NotePad.Links;
 import com.mokee.notepad.NotePad.NoteColumns;
 
 /**
@@ -58,16 +77,22 @@ public class NoteEditor extends Activity {
     private static final String[] PROJECTION = new String[] {
             NoteColumns._ID, // 0
             NoteColumns.NOTE, // 1
+            NoteColumns.CONTENT_HASH, // 2
+            NoteColumns.VERSION, // 3
     };
     /** The index of the note column */
     private static final int COLUMN_INDEX_NOTE = 1;
+    private static final int COLUMN_INDEX_HASH = 2;
+    private static final int COLUMN_INDEX_VERSION = 3;
     /** The index of the title column */
     private static final int IS_TO_SAVE = 0;
     private static final int IS_TO_DELETE = 1;
 
-    // This is our state data that is stored when freezing.
-    private static final String ORIGINAL_CONTENT = "origContent";
-    private static final String ORIGINAL_TITLE = "origTitle";
+    // This is our state data that is stored when freezing. Unsaved text is
+    // not kept here but in the note's draft journal.
+    private static final String SAVED_NOTE_URI = "noteUri";
+    private static final String SAVED_STATE = "state";
+    private static final String SAVED_PREVIEW = "preview";
 
     // The different distinct states the activity can be run in.
     private static final int STATE_EDIT = 0;
@@ -79,8 +104,35 @@ public class NoteEditor extends Activity {
     private Uri mUri;
     private Cursor mCursor;
     private EditText mText;
-    private String mOriginalContent;
-    private String mOriginalTitle;
+
+    // Read mode: the rendered markdown shown instead of the editor.
+    private View mPreviewScroll;
+    private TextView mPreview;
+    private boolean mPreviewing;
+    private RenderTask mRenderTask;
+
+    // Edits not yet in the provider, and whether it was checked for a draft
+    // left behind by a previous process.
+    private DraftJournal mJournal;
+    private boolean mJournalChecked;
+    /** Set while the text is replaced by something other than an edit. */
+    private boolean mLoading;
+
+    // Hash and version of the note as last read from or written to the
+    // provider, and the hash of the editor text, recomputed only after edits.
+    private long mStoredHash;
+    private long mVersion;
+    private long mTextHash;
+    private boolean mTextHashValid;
+
+    // A copy of the note prefetched by the list, shown until the provider
+    // has been read in the background.
+    private NotePrefetch.Note mPrefetched;
+    private VerifyTask mVerifyTask;
+
+    private UndoHistory mHistory;
+    private boolean mCanUndo;
+    private boolean mCanRedo;
 
     /**
      * A custom EditText that draws lines between each line of text that is
@@ -121,7 +173,12 @@ public class NoteEditor extends Activity {
 
         // Do some setup based on the action being performed.
         final String action = intent.getAction();
-        if (Intent.ACTION_EDIT.equals(action)) {
+        if (savedInstanceState != null && savedInstanceState.getString(SAVED_NOTE_URI) != null) {
+            // Recreated, possibly in a new process: carry on with the same
+            // note. Its unsaved text comes back from the draft journal.
+            mState = savedInstanceState.getInt(SAVED_STATE);
+            mUri = Uri.parse(savedInstanceState.getString(SAVED_NOTE_URI));
+        } else if (Intent.ACTION_EDIT.equals(action)) {
             // Requested to edit: set that state, and the data being edited.
             mState = STATE_EDIT;
             mUri = intent.getData();
@@ -129,7 +186,8 @@ public class NoteEditor extends Activity {
             // Requested to insert: set that state, and create a new entry
             // in the container.
             mState = STATE_INSERT;
-            mUri = getContentResolver().insert(intent.getData(), null);
+            mUri = IoWatchdog.insert(getContentResolver(), "NoteEditor.onCreate",
+                    intent.getData(), null);
 
             // If we were unable to create a new note, then just finish
             // this activity. A RESULT_CANCELED will be sent back to the
@@ -164,18 +222,105 @@ public class NoteEditor extends Activity {
         mText.setLineSpacing(1.1f, 1.1f);   
         mText.addTextChangedListener(watcher);
 
-        // Get the note!
-        @SuppressWarnings("deprecation")
-        Cursor managedQuery = managedQuery(mUri, PROJECTION, null, null, null);
-        mCursor = managedQuery;
+        mPreviewScroll = findViewById(R.id.preview_scroll);
+        mPreview = (TextView) findViewById(R.id.preview);
+        mPreview.setTextSize(25);
+        mPreview.setLineSpacing(1.1f, 1.1f);
+        mPreview.setMovementMethod(LinkMovementMethod.getInstance());
+        mPreviewing = savedInstanceState != null && savedInstanceState.getBoolean(SAVED_PREVIEW);
+
+        // Keep the undo history across configuration changes. It only holds
+        // deltas, so it never goes into the saved instance state.
+        mHistory = (UndoHistory) getLastNonConfigurationInstance();
+        if (mHistory == null) {
+            mHistory = new UndoHistory();
+        }
+
+        // Get the note! If the list prefetched it, show that copy right away
+        // and read the provider in the background.
+        final long noteId = ContentUris.parseId(mUri);
+        mJournal = new DraftJournal(this, noteId);
+        if (mState == STATE_EDIT && savedInstanceState == null && NotePrefetch.isEnabled()) {
+            mPrefetched = NotePrefetch.get(noteId,
+                    intent.getLongExtra(NotePrefetch.EXTRA_VERSION, -1));
+        }
+        if (mPrefetched != null) {
+            mVerifyTask = new VerifyTask();
+            mVerifyTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            mCursor = IoWatchdog.managedQuery(this, "NoteEditor.onCreate", mUri, PROJECTION,
+                    null, null, null);
+        }
+
+        // Time from the tap in the list until the text is drawn.
+        final long tapTime = intent.getLongExtra(NotePrefetch.EXTRA_TAP_TIME, 0);
+        if (tapTime > 0 && savedInstanceState == null) {
+            final boolean prefetched = mPrefetched != null;
+            mText.getViewTreeObserver().addOnPreDrawListener(
+                    new ViewTreeObserver.OnPreDrawListener() {
+                        @Override
+                        public boolean onPreDraw() {
+                            mText.getViewTreeObserver().removeOnPreDrawListener(this);
+                            NotePrefetch.recordTapToText(SystemClock.uptimeMillis() - tapTime,
+                                    prefetched);
+                            return true;
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Reads the note from the provider after a prefetched copy was shown.
+     * If the copy was stale and the user has not typed yet, the text is
+     * replaced; otherwise the version check of the next save catches it.
+     */
+    private class VerifyTask extends AsyncTask<Void, Void, Cursor> {
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Cursor c = IoWatchdog.query(getContentResolver(), "NoteEditor.verify", mUri,
+                    PROJECTION, null, null, null);
+            if (c != null) {
+                c.getCount();
+            }
+            return c;
+        }
 
-        // If an instance of this activity had previously stopped, we can
-        // get the original text it started with.
-        if (savedInstanceState != null) {
-            mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
-            mOriginalTitle = savedInstanceState.getString(ORIGINAL_TITLE);
+        @Override
+        protected void onCancelled(Cursor c) {
+            if (c != null) {
+                c.close();
+            }
         }
 
+        @Override
+        protected void onPostExecute(Cursor c) {
+            mVerifyTask = null;
+            if (c == null) {
+                return;
+            }
+            if (!c.moveToFirst()) {
+                // Deleted since it was cached. Show the error rather than
+                // leave the stale copy up for the next save to fail on.
+                c.close();
+                NotePrefetch.evict(ContentUris.parseId(mUri));
+                mJournal.delete();
+                setTitle(getText(R.string.error_title));
+                mLoading = true;
+                mText.setText(getText(R.string.error_message));
+                mLoading = false;
+                return;
+            }
+            mCursor = c;
+            startManagingCursor(c);
+            final String note = c.getString(COLUMN_INDEX_NOTE);
+            final long hash = c.isNull(COLUMN_INDEX_HASH) ? ContentHash.hash(note)
+                    : c.getLong(COLUMN_INDEX_HASH);
+            final long version = c.getLong(COLUMN_INDEX_VERSION);
+            NotePrefetch.put(ContentUris.parseId(mUri), note, hash, version);
+            if (hash != mStoredHash && !mJournal.hasEdits()) {
+                showNote(note, hash, version);
+            }
+        }
     }
     
     private String getTitleStr(String mText)
@@ -193,11 +338,17 @@ public class NoteEditor extends Activity {
 
         @Override
         public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-            
+            mHistory.beforeTextChanged(s, start, count);
         }
 
         @Override
         public void onTextChanged(CharSequence s, int start, int before, int count) {
+            mTextHashValid = false;
+            mHistory.onTextChanged(s, start, count);
+            if (!mLoading) {
+                mJournal.append(start, before, s.subSequence(start, start + count));
+            }
+            updateUndoMenu();
             String tmpTitle = getTitleStr(mText.getText().toString().trim());
             if(mState != STATE_EDIT)
             {
@@ -209,12 +360,110 @@ public class NoteEditor extends Activity {
             }
         }};
     
+    /**
+     * Whether the editor text differs from the note in the provider. Compares
+     * cached hashes, so it costs nothing unless the text changed since the
+     * last check.
+     */
+    private boolean isModified() {
+        return textHash() != mStoredHash;
+    }
+
+    private long textHash() {
+        if (!mTextHashValid) {
+            mTextHash = ContentHash.hash(mText.getText());
+            mTextHashValid = true;
+        }
+        return mTextHash;
+    }
+
+    /**
+     * Switches between editing the text and reading it rendered. A preview
+     * of unchanged text comes straight from the cache; anything else is
+     * rendered in the background, reusing the blocks that did not change.
+     */
+    private void setPreviewing(boolean previewing) {
+        mPreviewing = previewing;
+        if (mRenderTask != null) {
+            mRenderTask.cancel(false);
+            mRenderTask = null;
+        }
+        if (previewing) {
+            final long noteId = ContentUris.parseId(mUri);
+            final long hash = textHash();
+            CharSequence rendered = MarkdownPreview.getCached(noteId, hash);
+            mPreview.setText(rendered);
+            if (rendered == null) {
+                mRenderTask = new RenderTask(noteId, hash, mText.getText().toString());
+                mRenderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            }
+            InputMethodManager imm =
+                    (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
+            imm.hideSoftInputFromWindow(mText.getWindowToken(), 0);
+        }
+        mText.setVisibility(previewing ? View.GONE : View.VISIBLE);
+        mPreviewScroll.setVisibility(previewing ? View.VISIBLE : View.GONE);
+        invalidateOptionsMenu();
+    }
+
+    private class RenderTask extends AsyncTask<Void, Void, CharSequence> {
+        private final long mNoteId;
+        private final long mHash;
+        private final String mSource;
+
+        RenderTask(long noteId, long hash, String source) {
+            mNoteId = noteId;
+            mHash = hash;
+            mSource = source;
+        }
+
+        @Override
+        protected CharSequence doInBackground(Void... params) {
+            return MarkdownPreview.render(mNoteId, mHash, mSource);
+        }
+
+        @Override
+        protected void onPostExecute(CharSequence rendered) {
+            if (mRenderTask == this) {
+                mRenderTask = null;
+                mPreview.setText(rendered);
+            }
+        }
+    }
+
+    @Override
+    public Object onRetainNonConfigurationInstance() {
+        return mHistory;
+    }
+
+    /**
+     * Refreshes the undo/redo items, but only when their state flips.
+     */
+    private void updateUndoMenu() {
+        if (mHistory.canUndo() != mCanUndo || mHistory.canRedo() != mCanRedo) {
+            invalidateOptionsMenu();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.save_note, menu);
         return super.onCreateOptionsMenu(menu);
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        mCanUndo = mHistory.canUndo();
+        mCanRedo = mHistory.canRedo();
+        menu.findItem(R.id.undo).setEnabled(mCanUndo);
+        menu.findItem(R.id.redo).setEnabled(mCanRedo);
+        menu.findItem(R.id.undo).setVisible(!mPreviewing);
+        menu.findItem(R.id.redo).setVisible(!mPreviewing);
+        menu.findItem(R.id.preview).setTitle(mPreviewing ? R.string.menu_edit
+                : R.string.menu_preview);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
@@ -223,12 +472,35 @@ public class NoteEditor extends Activity {
                 saveNote();
                 finish();
                 break;
+            case R.id.undo:
+                mHistory.undo(mText.getText());
+                updateUndoMenu();
+                break;
+            case R.id.redo:
+                mHistory.redo(mText.getText());
+                updateUndoMenu();
+                break;
+            case R.id.preview:
+                setPreviewing(!mPreviewing);
+                break;
+            case R.id.reminder:
+                showReminderDialog();
+                break;
+            case R.id.tags:
+                new LoadTagsTask(ContentUris.parseId(mUri)).execute();
+                break;
+            case R.id.backlinks:
+                Intent intent = new Intent(Intent.ACTION_VIEW,
+                        Links.getBacklinksUri(ContentUris.parseId(mUri)), this, NotesList.class);
+                intent.putExtra(NotesList.EXTRA_LIST_TITLE,
+                        getString(R.string.backlinks_title, getTitle()));
+                startActivity(intent);
+                break;
             case android.R.id.home:
                 if (mState == STATE_INSERT && mText.getText().length() == 0) {
                     finish();
                 }
-                else if (mState == STATE_EDIT
-                        && mText.getText().toString().equals(mCursor.getString(COLUMN_INDEX_NOTE))) {
+                else if (mState == STATE_EDIT && !isModified()) {
                     finish();
                 }
                 else if (mState == STATE_EDIT
@@ -244,6 +516,131 @@ public class NoteEditor extends Activity {
         return super.onOptionsItemSelected(item);
     }
     
+    /**
+     * Loads the tags of the note off the main thread, then lets the user
+     * edit them as a comma separated list.
+     */
+    private class LoadTagsTask extends AsyncTask<Void, Void, String> {
+        private final long mNoteId;
+
+        LoadTagsTask(long noteId) {
+            mNoteId = noteId;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            return NoteTags.load(getContentResolver(), mNoteId);
+        }
+
+        @Override
+        protected void onPostExecute(String tags) {
+            if (!isFinishing()) {
+                showTagsDialog(mNoteId, tags);
+            }
+        }
+    }
+
+    private void showTagsDialog(final long noteId, final String tags) {
+        final EditText edit = new EditText(this);
+        edit.setSingleLine();
+        edit.setHint(R.string.tags_hint);
+        edit.setText(tags);
+        edit.setSelection(edit.getText().length());
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_tags)
+                .setView(edit)
+                .setPositiveButton(R.string.dialog_ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        final String newTags = edit.getText().toString();
+                        final ContentResolver resolver = getContentResolver();
+                        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                NoteTags.save(resolver, noteId, tags, newTags);
+                            }
+                        });
+                    }
+                })
+                .setNegativeButton(R.string.dialog_no, null)
+                .show();
+    }
+
+    /**
+     * Asks for the day, then the time, to be reminded of the note, or clears
+     * its reminder.
+     */
+    private void showReminderDialog() {
+        final long noteId = ContentUris.parseId(mUri);
+        final Calendar when = Calendar.getInstance();
+        when.add(Calendar.HOUR_OF_DAY, 1);
+        when.set(Calendar.MINUTE, 0);
+        DatePickerDialog dialog = new DatePickerDialog(this,
+                new DatePickerDialog.OnDateSetListener() {
+                    // Some releases report the date again when the dialog stops.
+                    private boolean mDateSet;
+
+                    @Override
+                    public void onDateSet(DatePicker view, int year, int month, int day) {
+                        if (mDateSet) {
+                            return;
+                        }
+                        mDateSet = true;
+                        when.set(year, month, day);
+                        showReminderTimeDialog(noteId, when);
+                    }
+                }, when.get(Calendar.YEAR), when.get(Calendar.MONTH),
+                when.get(Calendar.DAY_OF_MONTH));
+        dialog.setButton(DialogInterface.BUTTON_NEUTRAL, getText(R.string.reminder_clear),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        saveReminder(noteId, -1);
+                    }
+                });
+        dialog.show();
+    }
+
+    private void showReminderTimeDialog(final long noteId, final Calendar when) {
+        new TimePickerDialog(this, new TimePickerDialog.OnTimeSetListener() {
+            @Override
+            public void onTimeSet(TimePicker view, int hour, int minute) {
+                when.set(Calendar.HOUR_OF_DAY, hour);
+                when.set(Calendar.MINUTE, minute);
+                when.set(Calendar.SECOND, 0);
+                when.set(Calendar.MILLISECOND, 0);
+                saveReminder(noteId, when.getTimeInMillis());
+            }
+        }, when.get(Calendar.HOUR_OF_DAY), when.get(Calendar.MINUTE),
+                DateFormat.is24HourFormat(this)).show();
+    }
+
+    /**
+     * Sets the reminder of a note, or clears it if dueAt is negative. The
+     * provider moves the alarm if this changes the earliest reminder.
+     */
+    private void saveReminder(long noteId, final long dueAt) {
+        final ContentResolver resolver = getContentResolver();
+        final Uri uri = ContentUris.withAppendedId(NoteColumns.CONTENT_URI, noteId);
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                if (dueAt < 0) {
+                    values.putNull(NoteColumns.DUE_AT);
+                } else {
+                    values.put(NoteColumns.DUE_AT, dueAt);
+                }
+                resolver.update(uri, values, null, null);
+            }
+        });
+        if (dueAt >= 0) {
+            Toast.makeText(this, getString(R.string.reminder_set, DateUtils.formatDateTime(this,
+                    dueAt, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME)),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
     @SuppressWarnings("deprecation")
     @Override
     protected void onResume() {
@@ -253,43 +650,117 @@ public class NoteEditor extends Activity {
         if (mCursor != null) {
             // Requery in case something changed while paused (such as the
             // title)
-            mCursor.requery();
+            IoWatchdog.requery(mCursor, "NoteEditor.onResume");
             // Make sure we are at the one and only row in the cursor.
             mCursor.moveToFirst();
-
-            // Modify our overall title depending on the mode we are running in.
-            if (mState == STATE_EDIT) {
-                // Set the title of the Activity to include the note title
-                String title = mCursor.getString(COLUMN_INDEX_NOTE);
-                setTitle(title);
-            } else if (mState == STATE_INSERT) {
-                setTitle(getText(R.string.title_create));
-            }
-            // This is a little tricky: we may be resumed after previously being
-            // paused/stopped. We want to put the new text in the text view,
-            // but leave the user where they were (retain the cursor position
-            // etc). This version of setText does that for us.
             String note = mCursor.getString(COLUMN_INDEX_NOTE);
-            mText.setTextKeepState(note);
-
-            // If we hadn't previously retrieved the original text, do so
-            // now. This allows the user to revert their changes.
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
-            }
-
-        } else {
+            showNote(note, mCursor.isNull(COLUMN_INDEX_HASH) ? ContentHash.hash(note)
+                    : mCursor.getLong(COLUMN_INDEX_HASH), mCursor.getLong(COLUMN_INDEX_VERSION));
+        } else if (mPrefetched != null) {
+            // Still being read from the provider; see VerifyTask.
+            showNote(mPrefetched.mText, mPrefetched.mHash, mPrefetched.mVersion);
+            mPrefetched = null;
+        } else if (mVerifyTask == null) {
             setTitle(getText(R.string.error_title));
             mText.setText(getText(R.string.error_message));
         }
     }
 
+    /**
+     * Shows the text of the note as stored in the provider, along with any
+     * edits recovered from the draft journal.
+     */
+    private void showNote(String note, long hash, long version) {
+        // Modify our overall title depending on the mode we are running in.
+        if (mState == STATE_EDIT) {
+            // Set the title of the Activity to include the note title
+            setTitle(note);
+        } else if (mState == STATE_INSERT) {
+            setTitle(getText(R.string.title_create));
+        }
+        // This is a little tricky: we may be resumed after previously being
+        // paused/stopped. We want to put the new text in the text view,
+        // but leave the user where they were (retain the cursor position
+        // etc). This version of setText does that for us.
+        mStoredHash = hash;
+        mVersion = version;
+
+        // Reloading our own saved text keeps the history valid; anything
+        // else means the deltas no longer apply.
+        if (ContentHash.hash(mText.getText()) != mStoredHash) {
+            mHistory.clear();
+            updateUndoMenu();
+        }
+        mHistory.setRecording(false);
+        mLoading = true;
+        mText.setTextKeepState(note);
+        mLoading = false;
+        mHistory.setRecording(true);
+
+        if (!mJournalChecked) {
+            mJournalChecked = true;
+            recoverDraft(note, mStoredHash);
+        } else {
+            mJournal.start(mStoredHash);
+        }
+        if (mPreviewing) {
+            // The text may have been reloaded; show what is there now.
+            setPreviewing(true);
+        }
+    }
+
+    /**
+     * Brings back edits a previous process did not get to save. The journal
+     * is read off the main thread; until then, edits are not journaled.
+     */
+    private void recoverDraft(final String note, final long hash) {
+        final DraftJournal journal = mJournal;
+        journal.recover(note, hash, new DraftJournal.RecoverCallback() {
+            @Override
+            public void onRecovered(String draft) {
+                if (journal != mJournal || hash != mStoredHash) {
+                    // Saved or replaced meanwhile, which restarted the journal.
+                    return;
+                }
+                final String text = mText.getText().toString();
+                if (draft != null && text.equals(note)) {
+                    // The journal already holds the draft as one edit.
+                    mHistory.clear();
+                    mHistory.setRecording(false);
+                    mLoading = true;
+                    mText.setTextKeepState(draft);
+                    mLoading = false;
+                    mHistory.setRecording(true);
+                    updateUndoMenu();
+                    Toast.makeText(NoteEditor.this, R.string.draft_restored,
+                            Toast.LENGTH_SHORT).show();
+                    if (mPreviewing) {
+                        setPreviewing(true);
+                    }
+                    return;
+                }
+                // Typed into before the journal was read: what is shown now
+                // wins, journaled as one edit of the saved text.
+                mJournal.reset(hash);
+                if (!text.equals(note)) {
+                    mJournal.append(0, note.length(), text);
+                }
+            }
+        });
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
-        // Save away the original text, so we still have it if the activity
-        // needs to be killed while paused.
-        outState.putString(ORIGINAL_CONTENT, mOriginalContent);
-        outState.putString(ORIGINAL_TITLE, mOriginalTitle);
+        // Only a reference to the note; if the activity is killed while
+        // paused, its unsaved text is replayed from the draft journal.
+        if (mUri != null) {
+            outState.putString(SAVED_NOTE_URI, mUri.toString());
+            outState.putInt(SAVED_STATE, mState);
+            outState.putBoolean(SAVED_PREVIEW, mPreviewing);
+        }
+        if (mJournal != null) {
+            mJournal.flush();
+        }
     }
 
     @Override
@@ -310,9 +781,13 @@ public class NoteEditor extends Activity {
         }
         else if (cancelModify) {
             cancelModify = false;
+            mJournal.delete();
         }
         else {
             saveNote();
+            if (isFinishing() && !isModified()) {
+                mJournal.delete();
+            }
         }
     }
 
@@ -320,15 +795,19 @@ public class NoteEditor extends Activity {
         // Make sure their current
         // changes are safely saved away in the provider. We don't need
         // to do this if only editing.
-        if (mState == STATE_EDIT
-                && mText.getText().toString().equals(mCursor.getString(COLUMN_INDEX_NOTE))) {
-            if (TextUtils.isEmpty(mText.getText().toString()))
+        if (!isModified()) {
+            if (mState == STATE_EDIT && TextUtils.isEmpty(mText.getText().toString()))
             {
                 deleteNote();
+            } else if (mJournal.hasEdits()) {
+                // The edits cancelled out; nothing to replay.
+                mJournal.reset(mStoredHash);
             }
         }
         else {
-            if (mCursor != null) {
+            // While a prefetched copy is verified there is no cursor yet,
+            // but the version check still guards the update.
+            if (mCursor != null || mVerifyTask != null) {
                 // Get out updates into the provider.
                 ContentValues values = new ContentValues();
 
@@ -351,9 +830,24 @@ public class NoteEditor extends Activity {
                 // update completes
                 // the content provider will notify the cursor of the change,
                 // which will
-                // cause the UI to be updated.
+                // cause the UI to be updated. The update only applies if
+                // nobody else wrote the note since we read it.
+                Uri uri = mUri.buildUpon()
+                        .appendQueryParameter(NoteColumns.EXPECTED_VERSION,
+                                String.valueOf(mVersion))
+                        .build();
                 try {
-                    getContentResolver().update(mUri, values, null, null);
+                    if (IoWatchdog.update(getContentResolver(), "NoteEditor.saveNote", uri,
+                            values, null, null) > 0) {
+                        // isModified() above hashed exactly this text, and
+                        // the text changed, so the update bumped the version.
+                        mStoredHash = mTextHash;
+                        mVersion++;
+                        mJournal.reset(mStoredHash);
+                        NotePrefetch.put(ContentUris.parseId(mUri), text, mStoredHash, mVersion);
+                    } else {
+                        saveConflict(values);
+                    }
                 } catch (NullPointerException e) {
                     Log.e(TAG, e.getMessage());
                 }
@@ -361,6 +855,37 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * The note was changed or deleted by someone else since we read it. Rather
+     * than overwrite their change, keep ours as a new note and edit that one
+     * from now on.
+     */
+    private final void saveConflict(ContentValues values) {
+        Log.w(TAG, "Version conflict saving " + mUri);
+        Uri uri = IoWatchdog.insert(getContentResolver(), "NoteEditor.saveConflict",
+                NoteColumns.CONTENT_URI, values);
+        if (uri == null) {
+            return;
+        }
+        mUri = uri;
+        mState = STATE_EDIT;
+        if (mCursor != null) {
+            stopManagingCursor(mCursor);
+            mCursor.close();
+        }
+        mCursor = IoWatchdog.managedQuery(this, "NoteEditor.saveConflict", mUri, PROJECTION,
+                null, null, null);
+        if (mCursor != null && mCursor.moveToFirst()) {
+            mStoredHash = mCursor.getLong(COLUMN_INDEX_HASH);
+            mVersion = mCursor.getLong(COLUMN_INDEX_VERSION);
+        }
+        // The text is saved in the copy; journal further edits against it.
+        mJournal.delete();
+        mJournal = new DraftJournal(this, ContentUris.parseId(mUri));
+        mJournal.reset(mStoredHash);
+        Toast.makeText(this, R.string.save_conflict, Toast.LENGTH_LONG).show();
+    }
+
     /**
      * Take care of deleting a note. Simply deletes the entry.
      */
@@ -368,11 +893,26 @@ public class NoteEditor extends Activity {
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
-            getContentResolver().delete(mUri, null, null);
+            IoWatchdog.delete(getContentResolver(), "NoteEditor.deleteNote", mUri, null, null);
+            NotePrefetch.evict(ContentUris.parseId(mUri));
+            mJournal.delete();
             // mText.setText("");
         }
     }
     
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mVerifyTask != null) {
+            mVerifyTask.cancel(false);
+            mVerifyTask = null;
+        }
+        if (mJournal != null && !isFinishing()) {
+            // Recreated, e.g. on rotation; the new editor reopens the journal.
+            mJournal.close();
+        }
+    }
+
     @Override
     protected void onStart() {
         getActionBar().setDisplayHomeAsUpEnabled(true);
@@ -385,8 +925,7 @@ public class NoteEditor extends Activity {
         if (mState == STATE_INSERT && mText.getText().length() == 0) {
             finish();
         }
-        else if (mState == STATE_EDIT
-                && mText.getText().toString().equals(mCursor.getString(COLUMN_INDEX_NOTE))) {
+        else if (mState == STATE_EDIT && !isModified()) {
             finish();
         }
         else if (mState == STATE_EDIT
@@ -422,7 +961,9 @@ public class NoteEditor extends Activity {
                                     public void onClick(DialogInterface dialog, int which) {
 
                                         if (mState == STATE_INSERT) {
-                                            getContentResolver().delete(mUri, null, null);
+                                            IoWatchdog.delete(getContentResolver(),
+                                                    "NoteEditor.onCreateDialog", mUri, null,
+                                                    null);
                                         }
                                         cancelModify = true;
                                         finish();
@@ -448,7 +989,8 @@ public class NoteEditor extends Activity {
                             public void onClick(DialogInterface dialog, int which) {
 
                                 if (mState == STATE_INSERT) {
-                                    getContentResolver().delete(mUri, null, null);
+                                    IoWatchdog.delete(getContentResolver(),
+                                            "NoteEditor.onCreateDialog", mUri, null, null);
                                 }
                                 cancelModify = true;
                                 finish();
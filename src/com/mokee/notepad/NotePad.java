@@ -53,11 +53,37 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * The content:// style URL for the per-section note counts of the
+         * title order. Each row has a {@link #SECTION} and a {@link #_COUNT},
+         * in the order the sections appear in {@link #TITLE_SORT_ORDER}.
+         */
+        public static final Uri SECTIONS_URI = Uri.parse("content://" + AUTHORITY
+                + "/notes/sections");
+
+        /**
+         * The content:// style URL for substring search over titles and text.
+         * The text to find goes in the {@link #SEARCH_QUERY} parameter.
+         */
+        public static final Uri SEARCH_URI = Uri.parse("content://" + AUTHORITY
+                + "/notes/search");
+
+        /**
+         * Query parameter of {@link #SEARCH_URI}: the text to find. ASCII
+         * letters match case insensitively.
+         */
+        public static final String SEARCH_QUERY = "q";
+
         /**
          * The default sort order for this table
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * Sorts by title, in pinyin order for Chinese titles
+         */
+        public static final String TITLE_SORT_ORDER = "sort_key ASC";
+
         /**
          * The title of the note
          * <P>
@@ -89,5 +115,403 @@ public final class NotePad {
          * </P>
          */
         public static final String MODIFIED_DATE = "modified";
+
+        /**
+         * 64-bit hash of {@link #NOTE}, maintained by the provider
+         * <P>
+         * Type: INTEGER (long)
+         * </P>
+         */
+        public static final String CONTENT_HASH = "hash";
+
+        /**
+         * Incremented by the provider every time {@link #NOTE} is written
+         * <P>
+         * Type: INTEGER (long)
+         * </P>
+         */
+        public static final String VERSION = "version";
+
+        /**
+         * Query parameter for updates of a single note: the {@link #VERSION}
+         * the caller last saw. The update only applies if the note is still at
+         * that version and returns 0 otherwise; an update that would not change
+         * the note's content is skipped and reported as applied.
+         */
+        public static final String EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Query parameter for note lists: if "true", notes moved to the archive
+         * are included. Without it only recently modified notes are listed.
+         */
+        public static final String INCLUDE_ARCHIVE = "include_archive";
+
+        /**
+         * Locale-aware sort key of {@link #TITLE}, maintained by the provider.
+         * Its first character is the title's fast-scroll section.
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String SORT_KEY = "sort_key";
+
+        /**
+         * When to remind the user of the note, or null for no reminder. A
+         * reminder is cleared once it has fired.
+         * <P>
+         * Type: INTEGER (long from System.currentTimeMillis())
+         * </P>
+         */
+        public static final String DUE_AT = "due_at";
+
+        /**
+         * The section letter in rows of {@link #SECTIONS_URI}
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String SECTION = "section";
+    }
+
+    /**
+     * Tags table. Notes and tags are linked many-to-many; each tag keeps a
+     * count of its notes.
+     */
+    public static final class Tags implements BaseColumns {
+        // This class cannot be instantiated
+        private Tags() {
+        }
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/tags");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of tags.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.mokee.note.tag";
+
+        /**
+         * The MIME type of a {@link #CONTENT_URI} sub-directory of a single
+         * tag.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                "vnd.android.cursor.item/vnd.mokee.note.tag";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "name ASC";
+
+        /**
+         * The name of the tag, unique ignoring case
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String NAME = "name";
+
+        /**
+         * The number of notes with this tag, maintained by the provider
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String NOTE_COUNT = "note_count";
+
+        /**
+         * The note to link when inserting into {@link #getNotesUri(long)}
+         * <P>
+         * Type: INTEGER (long)
+         * </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * The notes with the given tag. Insert a {@link #NOTE_ID} to tag a
+         * note, delete with a {@link #NOTE_ID} selection to untag it.
+         */
+        public static Uri getNotesUri(long tagId) {
+            return CONTENT_URI.buildUpon().appendPath(String.valueOf(tagId))
+                    .appendPath("notes").build();
+        }
+
+        /**
+         * The tags of the given note. Insert a {@link #NAME} to tag the note,
+         * creating the tag if needed; delete with a {@link #NAME} selection to
+         * untag it.
+         */
+        public static Uri getTagsOfNoteUri(long noteId) {
+            return NoteColumns.CONTENT_URI.buildUpon().appendPath(String.valueOf(noteId))
+                    .appendPath("tags").build();
+        }
+    }
+
+    /**
+     * {@code [[Title]]} references between notes, maintained by the provider
+     * from the note text. Read-only.
+     */
+    public static final class Links implements BaseColumns {
+        // This class cannot be instantiated
+        private Links() {
+        }
+
+        /**
+         * The MIME type of the links of a note.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.mokee.note.link";
+
+        /**
+         * The note the reference appears in
+         * <P>
+         * Type: INTEGER (long)
+         * </P>
+         */
+        public static final String SOURCE_ID = "source_id";
+
+        /**
+         * The title as written in the reference
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String TARGET_TITLE = "target_title";
+
+        /**
+         * The note with that title, or NULL while there is none
+         * <P>
+         * Type: INTEGER (long)
+         * </P>
+         */
+        public static final String TARGET_ID = "target_id";
+
+        /**
+         * The references made by the given note, including dangling ones.
+         */
+        public static Uri getLinksUri(long noteId) {
+            return NoteColumns.CONTENT_URI.buildUpon().appendPath(String.valueOf(noteId))
+                    .appendPath("links").build();
+        }
+
+        /**
+         * The notes referencing the given note, as rows of
+         * {@link NoteColumns}.
+         */
+        public static Uri getBacklinksUri(long noteId) {
+            return NoteColumns.CONTENT_URI.buildUpon().appendPath(String.valueOf(noteId))
+                    .appendPath("backlinks").build();
+        }
+    }
+
+    /**
+     * Read-only provider statistics, one row per URI type and operation.
+     */
+    public static final class Stats {
+        // This class cannot be instantiated
+        private Stats() {
+        }
+
+        /**
+         * The content:// style URL for the provider statistics
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/stats");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.mokee.note.stats";
+
+        /**
+         * The URI type the row is about, e.g. "notes/#"
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String URI_TYPE = "uri_type";
+
+        /**
+         * The operation: query, insert, update, delete or call
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String OPERATION = "operation";
+
+        /**
+         * Number of calls
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String CALLS = "calls";
+
+        /**
+         * Total time spent in the provider, in microseconds
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String TOTAL_MICROS = "total_us";
+
+        /**
+         * Slowest single call, in microseconds
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String MAX_MICROS = "max_us";
+
+        /**
+         * Upper bound of the histogram bucket holding the median, in
+         * microseconds
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String P50_MICROS = "p50_us";
+
+        /**
+         * Upper bound of the histogram bucket holding the 99th percentile, in
+         * microseconds
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String P99_MICROS = "p99_us";
+
+        /**
+         * Rows returned or affected
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String ROWS = "rows";
+
+        /**
+         * Bytes of note text moved in or out of the provider
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String NOTE_BYTES = "note_bytes";
+
+        /**
+         * Change notifications sent for this URI type
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String NOTIFICATIONS = "notifications";
+    }
+
+    /**
+     * Statistics over the text of all notes. Each row is one figure, named by
+     * its kind and key.
+     */
+    public static final class Corpus {
+        // This class cannot be instantiated
+        private Corpus() {
+        }
+
+        /**
+         * The content:// style URL for the corpus statistics
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY
+                + "/stats/corpus");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_TYPE =
+                "vnd.android.cursor.dir/vnd.mokee.note.corpus";
+
+        /** Totals, keyed "notes", "words" and "chars". */
+        public static final String KIND_TOTAL = "total";
+
+        /** Notes created per month, keyed "yyyy-mm", oldest first. */
+        public static final String KIND_MONTH = "month";
+
+        /** The most frequent terms, keyed by term, most frequent first. */
+        public static final String KIND_TERM = "term";
+
+        /** The largest notes in chars, keyed by note id, largest first. */
+        public static final String KIND_LARGEST = "largest";
+
+        /**
+         * One of the KIND_ constants
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String KIND = "kind";
+
+        /**
+         * What the figure is about, depending on the kind
+         * <P>
+         * Type: TEXT
+         * </P>
+         */
+        public static final String KEY = "key";
+
+        /**
+         * The figure
+         * <P>
+         * Type: INTEGER
+         * </P>
+         */
+        public static final String VALUE = "value";
+    }
+
+    /**
+     * Methods of {@link android.content.ContentResolver#call} on the notes
+     * provider, for small questions that do not need a cursor. Methods that
+     * take notes accept either one id as the arg, or {@link #EXTRA_IDS} for
+     * many at once; the result then is an array in the order of the ids.
+     */
+    public static final class Calls {
+        // This class cannot be instantiated
+        private Calls() {
+        }
+
+        /**
+         * The number of notes, as a long. Archived notes are counted if
+         * {@link #EXTRA_INCLUDE_ARCHIVE} is true.
+         */
+        public static final String METHOD_COUNT = "count";
+
+        /**
+         * Whether the notes exist, in either tier: a boolean, or a boolean
+         * array for {@link #EXTRA_IDS}.
+         */
+        public static final String METHOD_EXISTS = "exists";
+
+        /**
+         * The titles of the notes, null for those that do not exist: a
+         * String, or a String array for {@link #EXTRA_IDS}.
+         */
+        public static final String METHOD_GET_TITLE = "get_title";
+
+        /**
+         * Sets the modification time of the notes to now, moving archived
+         * ones back to the hot table. The result is the number of notes
+         * touched, as an int.
+         */
+        public static final String METHOD_TOUCH = "touch";
+
+        /**
+         * Extra with the ids of the notes, as a long array.
+         */
+        public static final String EXTRA_IDS = "ids";
+
+        /**
+         * Extra of {@link #METHOD_COUNT}, as a boolean.
+         */
+        public static final String EXTRA_INCLUDE_ARCHIVE = NoteColumns.INCLUDE_ARCHIVE;
+
+        /**
+         * Key of the result in the returned bundle.
+         */
+        public static final String RESULT = "result";
     }
 }
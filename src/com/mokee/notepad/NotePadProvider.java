@@ -16,24 +16,43 @@
 
 package com.mokee.notepad;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
 
+import com.mokee.notepad.NotePad.Calls;
+import com.mokee.notepad.NotePad.Links;
 import com.mokee.notepad.NotePad.NoteColumns;
+import com.mokee.notepad.NotePad.Tags;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -45,15 +64,57 @@ public class NotePadProvider extends ContentProvider {
     private static final String TAG = "NotePadProvider";
 
     private static final String DATABASE_NAME = "notepad.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 9;
     private static final String NOTES_TABLE_NAME = "notes";
+    private static final String TAGS_TABLE_NAME = "tags";
+    private static final String NOTE_TAGS_TABLE_NAME = "note_tags";
+    private static final String NOTE_TAGS_TAG_ID = "tag_id";
+
+    /** Ids in one IN list, so a statement stays small however many match. */
+    private static final int MAX_IDS_PER_STATEMENT = 500;
+
+    private static final String ARCHIVE_PREFS = "archive";
+    private static final String PREF_LAST_ARCHIVE = "last_run";
+    private static final long ARCHIVE_DELAY_MS = 10 * DateUtils.SECOND_IN_MILLIS;
+
+    // Backfills run by SchemaMigrations.
+    private static final String MIGRATION_SORT_KEYS = "sort_keys";
+    private static final String MIGRATION_NOTE_INDEX = "note_index";
+
+    /** What ORDER BY sort_key falls back to until every note has a key. */
+    private static final String SORT_KEY_FALLBACK = NoteColumns.TITLE + " COLLATE LOCALIZED";
+
+    /** Cursors over tags or tagged notes watch the whole provider. */
+    private static final Uri ROOT_URI = Uri.parse("content://" + NotePad.AUTHORITY);
 
     private static HashMap<String, String> sNotesProjectionMap;
     private static HashMap<String, String> sLiveFolderProjectionMap;
+    private static HashMap<String, String> sTagsProjectionMap;
+    private static HashMap<String, String> sLinksProjectionMap;
+    private static HashMap<String, String> sBacklinksProjectionMap;
 
     private static final int NOTES = 1;
     private static final int NOTE_ID = 2;
     private static final int LIVE_FOLDER_NOTES = 3;
+    private static final int STATS = 4;
+    private static final int NOTE_SECTIONS = 5;
+    private static final int TAGS = 6;
+    private static final int TAG_ID = 7;
+    private static final int TAG_NOTES = 8;
+    private static final int NOTE_TAGS = 9;
+    private static final int NOTE_SEARCH = 10;
+    private static final int NOTE_LINKS = 11;
+    private static final int NOTE_BACKLINKS = 12;
+    private static final int CORPUS_STATS = 13;
+
+    /**
+     * Names of the URI types tracked by {@link ProviderStats}, indexed by
+     * {@link #statsType(int)}.
+     */
+    private static final String[] STATS_URI_TYPES = new String[] {
+            "notes", "notes/#", "live_folders/notes", "tags", "tags/#", "tags/#/notes",
+            "notes/#/tags", "notes/search", "notes/#/links", "notes/#/backlinks"
+    };
 
     private static final UriMatcher sUriMatcher;
 
@@ -62,8 +123,23 @@ public class NotePadProvider extends ContentProvider {
      */
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
-        DatabaseHelper(Context context) {
+        private final NoteArchive mArchive;
+        private final SchemaMigrations mMigrations;
+
+        DatabaseHelper(Context context, NoteArchive archive, SchemaMigrations migrations) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            mArchive = archive;
+            mMigrations = migrations;
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            // Attached here, outside any transaction, if it was ever created.
+            // With an attached database the framework will not enable WAL,
+            // so readers and the writer share the one primary connection;
+            // this provider never enabled WAL, so that is no change.
+            mArchive.attach(db, false);
+            mMigrations.load(db);
         }
 
         @Override
@@ -73,47 +149,466 @@ public class NotePadProvider extends ContentProvider {
                     + NoteColumns.TITLE + " TEXT,"
                     + NoteColumns.NOTE + " TEXT,"
                     + NoteColumns.CREATED_DATE + " INTEGER,"
-                    + NoteColumns.MODIFIED_DATE + " INTEGER"
+                    + NoteColumns.MODIFIED_DATE + " INTEGER,"
+                    + NoteColumns.CONTENT_HASH + " INTEGER,"
+                    + NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 1,"
+                    + NoteColumns.SORT_KEY + " TEXT,"
+                    + NoteColumns.DUE_AT + " INTEGER"
+                    + ");");
+            createVersionTrigger(db);
+            createSortKeyIndex(db);
+            ReminderScheduler.createIndex(db);
+            createTagTables(db);
+            NgramIndex.createTable(db);
+            LinkGraph.createTables(db);
+            SchemaMigrations.createTable(db);
+        }
+
+        /**
+         * Tags and the note-tag join table, indexed from both sides. Triggers
+         * on the join table keep each tag's note count current.
+         */
+        private static void createTagTables(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TAGS_TABLE_NAME + " ("
+                    + Tags._ID + " INTEGER PRIMARY KEY,"
+                    + Tags.NAME + " TEXT NOT NULL UNIQUE COLLATE NOCASE,"
+                    + Tags.NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0"
                     + ");");
+            db.execSQL("CREATE TABLE " + NOTE_TAGS_TABLE_NAME + " ("
+                    + Tags.NOTE_ID + " INTEGER NOT NULL,"
+                    + NOTE_TAGS_TAG_ID + " INTEGER NOT NULL,"
+                    + "PRIMARY KEY (" + Tags.NOTE_ID + "," + NOTE_TAGS_TAG_ID + ")"
+                    + ");");
+            db.execSQL("CREATE INDEX note_tags_tag ON " + NOTE_TAGS_TABLE_NAME + " ("
+                    + NOTE_TAGS_TAG_ID + "," + Tags.NOTE_ID + ");");
+            db.execSQL("CREATE TRIGGER note_tags_insert AFTER INSERT ON " + NOTE_TAGS_TABLE_NAME
+                    + " BEGIN UPDATE " + TAGS_TABLE_NAME + " SET " + Tags.NOTE_COUNT + "="
+                    + Tags.NOTE_COUNT + "+1 WHERE " + Tags._ID + "=new." + NOTE_TAGS_TAG_ID
+                    + "; END");
+            db.execSQL("CREATE TRIGGER note_tags_delete AFTER DELETE ON " + NOTE_TAGS_TABLE_NAME
+                    + " BEGIN UPDATE " + TAGS_TABLE_NAME + " SET " + Tags.NOTE_COUNT + "="
+                    + Tags.NOTE_COUNT + "-1 WHERE " + Tags._ID + "=old." + NOTE_TAGS_TAG_ID
+                    + "; END");
+        }
+
+        private static void createSortKeyIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX notes_sort_key ON " + NOTES_TABLE_NAME + " ("
+                    + NoteColumns.SORT_KEY + ");");
+        }
+
+        /**
+         * Bumps the version of every note whose text is written, whichever
+         * path the update came through.
+         */
+        private static void createVersionTrigger(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER notes_version AFTER UPDATE OF " + NoteColumns.NOTE
+                    + " ON " + NOTES_TABLE_NAME + " BEGIN UPDATE " + NOTES_TABLE_NAME
+                    + " SET " + NoteColumns.VERSION + "=old." + NoteColumns.VERSION + "+1"
+                    + " WHERE " + NoteColumns._ID + "=new." + NoteColumns._ID + "; END");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS notes");
-            onCreate(db);
+            // Every step only changes the schema and keeps the notes; data
+            // the new schema needs is filled in by SchemaMigrations later.
+            Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            SchemaMigrations.createTable(db);
+            if (oldVersion < 2) {
+                // Version 1 had the same notes table; make sure it is there.
+                db.execSQL("CREATE TABLE IF NOT EXISTS " + NOTES_TABLE_NAME + " ("
+                        + NoteColumns._ID + " INTEGER PRIMARY KEY,"
+                        + NoteColumns.TITLE + " TEXT,"
+                        + NoteColumns.NOTE + " TEXT,"
+                        + NoteColumns.CREATED_DATE + " INTEGER,"
+                        + NoteColumns.MODIFIED_DATE + " INTEGER"
+                        + ");");
+            }
+            if (oldVersion < 3) {
+                // Existing notes keep a NULL hash until they are next written.
+                db.execSQL("ALTER TABLE " + NOTES_TABLE_NAME + " ADD COLUMN "
+                        + NoteColumns.CONTENT_HASH + " INTEGER");
+                db.execSQL("ALTER TABLE " + NOTES_TABLE_NAME + " ADD COLUMN "
+                        + NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 1");
+                createVersionTrigger(db);
+            }
+            if (oldVersion < 4) {
+                // The index is only built once every note has its key.
+                db.execSQL("ALTER TABLE " + NOTES_TABLE_NAME + " ADD COLUMN "
+                        + NoteColumns.SORT_KEY + " TEXT");
+                SchemaMigrations.schedule(db, MIGRATION_SORT_KEYS);
+            }
+            if (oldVersion < 5) {
+                createTagTables(db);
+            }
+            if (oldVersion < 6) {
+                NgramIndex.createTable(db);
+            }
+            if (oldVersion < 7) {
+                LinkGraph.createTables(db);
+                SchemaMigrations.schedule(db, MIGRATION_NOTE_INDEX);
+            }
+            if (oldVersion < 9) {
+                // Every existing note starts without a reminder.
+                db.execSQL("ALTER TABLE " + NOTES_TABLE_NAME + " ADD COLUMN "
+                        + NoteColumns.DUE_AT + " INTEGER");
+                ReminderScheduler.createIndex(db);
+            }
+        }
+    }
+
+    private static void fillSortKeys(SQLiteDatabase db, String table, String selection) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET "
+                + NoteColumns.SORT_KEY + "=? WHERE " + NoteColumns._ID + "=?");
+        Cursor c = db.query(table, new String[] {
+                NoteColumns._ID, NoteColumns.TITLE
+        }, selection, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                update.bindString(1, SortKeys.forTitle(c.getString(1)));
+                update.bindLong(2, c.getLong(0));
+                update.execute();
+            }
+        } finally {
+            c.close();
+            update.close();
         }
     }
 
     private DatabaseHelper mOpenHelper;
+    private NoteArchive mArchive;
+    private SchemaMigrations mMigrations;
+    private ReminderScheduler mReminders;
+    private CorpusStats mCorpusStats;
+    private final SlowQueryLog mSlowQueries = new SlowQueryLog();
+    private final ProviderStats mStats = new ProviderStats(STATS_URI_TYPES);
+
+    /** Set while the calling thread is inside {@link #applyBatch}. */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    /** Runs all writes; see {@link GroupCommitWriter}. */
+    private GroupCommitWriter mWriter;
+
+    /**
+     * Notifications of the writes in the current group, sent once it has
+     * committed. Only touched on the writer thread.
+     */
+    private final LinkedHashSet<Uri> mPendingNotifications = new LinkedHashSet<Uri>();
+
+    /**
+     * Whether a write in the current group may have changed the earliest
+     * reminder. Only touched on the writer thread.
+     */
+    private boolean mRemindersChanged;
+
+    /**
+     * Notes whose text or creation time a write in the current group may
+     * have changed, for {@link CorpusStats}. Only touched on the writer
+     * thread.
+     */
+    private final HashSet<Long> mCorpusChanged = new HashSet<Long>();
+    private boolean mCorpusAllChanged;
 
     @Override
     public boolean onCreate() {
-        mOpenHelper = new DatabaseHelper(getContext());
+        mArchive = new NoteArchive(getContext().getDatabasePath(NoteArchive.DATABASE_NAME));
+        mMigrations = new SchemaMigrations(mArchive);
+        mMigrations.register(MIGRATION_SORT_KEYS, new SchemaMigrations.Backfill() {
+            @Override
+            public void fill(SQLiteDatabase db, String table, String selection) {
+                fillSortKeys(db, table, selection);
+            }
+
+            @Override
+            public void finish(SQLiteDatabase db) {
+                DatabaseHelper.createSortKeyIndex(db);
+            }
+        });
+        mMigrations.register(MIGRATION_NOTE_INDEX, new SchemaMigrations.Backfill() {
+            @Override
+            public void fill(SQLiteDatabase db, String table, String selection) {
+                indexNotes(db, table, selection);
+            }
+
+            @Override
+            public void finish(SQLiteDatabase db) {
+            }
+        });
+        mOpenHelper = new DatabaseHelper(getContext(), mArchive, mMigrations);
+        mReminders = new ReminderScheduler(getContext());
+        mCorpusStats = new CorpusStats(mOpenHelper, mArchive);
+        mWriter = new GroupCommitWriter(mOpenHelper, new GroupCommitWriter.Listener() {
+            @Override
+            public void onCommitted() {
+                for (Uri uri : mPendingNotifications) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+                mPendingNotifications.clear();
+                if (mRemindersChanged) {
+                    mRemindersChanged = false;
+                    mReminders.update(mOpenHelper.getWritableDatabase());
+                }
+                if (mCorpusAllChanged) {
+                    mCorpusAllChanged = false;
+                    mCorpusStats.onAllNotesChanged();
+                } else if (!mCorpusChanged.isEmpty()) {
+                    mCorpusStats.onNotesChanged(mCorpusChanged);
+                }
+                mCorpusChanged.clear();
+                mStats.commitPending();
+            }
+
+            @Override
+            public void onRolledBack() {
+                mPendingNotifications.clear();
+                mRemindersChanged = false;
+                mCorpusAllChanged = false;
+                mCorpusChanged.clear();
+                mStats.discardPending();
+            }
+        });
+        startBackgroundWork();
         return true;
     }
 
+    /**
+     * Starts what onCreate leaves to the background: registering the
+     * reminder alarm again, the backfills of an upgrade and the daily
+     * archive pass. Tests that run the provider in an isolated context,
+     * which has none of the services this needs, override it.
+     */
+    protected void startBackgroundWork() {
+        // Opens, and if need be upgrades, the database off the main thread,
+        // then fills in whatever the upgrade left to the background.
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                // The alarm does not survive a reboot; register it again.
+                mReminders.update(db);
+                final boolean sortKeysPending = mMigrations.isPending(MIGRATION_SORT_KEYS);
+                final boolean noteIndexPending = mMigrations.isPending(MIGRATION_NOTE_INDEX);
+                mMigrations.run(mWriter, db);
+                if (sortKeysPending) {
+                    // Lists sorted by title without the keys can use them now.
+                    getContext().getContentResolver().notifyChange(NoteColumns.CONTENT_URI,
+                            null);
+                }
+                if (noteIndexPending) {
+                    // Links and backlinks read so far missed unindexed notes.
+                    getContext().getContentResolver().notifyChange(ROOT_URI, null);
+                }
+            }
+        });
+        // Archive old notes once the app is up, at most once a day.
+        new Handler().postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                AsyncTask.SERIAL_EXECUTOR.execute(mArchiveNotes);
+            }
+        }, ARCHIVE_DELAY_MS);
+    }
+
+    private final Runnable mArchiveNotes = new Runnable() {
+        @Override
+        public void run() {
+            SharedPreferences prefs = getContext().getSharedPreferences(ARCHIVE_PREFS,
+                    Context.MODE_PRIVATE);
+            final long now = System.currentTimeMillis();
+            final long last = prefs.getLong(PREF_LAST_ARCHIVE, 0);
+            if (now - last < DateUtils.DAY_IN_MILLIS && now >= last) {
+                return;
+            }
+            prefs.edit().putLong(PREF_LAST_ARCHIVE, now).apply();
+            final long cutoff = NoteArchive.cutoff(now);
+            if (!mArchive.prepare(mOpenHelper.getWritableDatabase(), cutoff)) {
+                return;
+            }
+            // A batch per write, so other writers get in between batches.
+            int moved = 0;
+            int batch;
+            do {
+                batch = mWriter.submit(new GroupCommitWriter.Write<Integer>() {
+                    @Override
+                    public Integer run() {
+                        final int count = mArchive.archiveBatch(
+                                mOpenHelper.getWritableDatabase(), cutoff);
+                        if (count > 0) {
+                            notifyChange(NoteColumns.CONTENT_URI, NOTES);
+                        }
+                        return count;
+                    }
+                });
+                moved += batch;
+            } while (batch == NoteArchive.batchSize());
+            if (moved > 0) {
+                Log.i(TAG, "Archived " + moved + " notes modified before " + cutoff);
+            }
+        }
+    };
+
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    private static String[] prepend(String[] args, String... first) {
+        if (args == null) {
+            return first;
+        }
+        String[] all = new String[first.length + args.length];
+        System.arraycopy(first, 0, all, 0, first.length);
+        System.arraycopy(args, 0, all, first.length, args.length);
+        return all;
+    }
+
+    /**
+     * Whether a query asked to read archived notes too, and there are any.
+     */
+    private boolean includeArchive(Uri uri) {
+        return mArchive.isAttached()
+                && Boolean.parseBoolean(uri.getQueryParameter(NoteColumns.INCLUDE_ARCHIVE));
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder, CancellationSignal cancellationSignal) {
+        final long start = System.nanoTime();
+        // Opened first, so pending migrations are known below.
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(NOTES_TABLE_NAME);
 
-        switch (sUriMatcher.match(uri)) {
+        final int match = sUriMatcher.match(uri);
+        String defaultOrderBy = NoteColumns.DEFAULT_SORT_ORDER;
+        Uri notificationUri = uri;
+        switch (match) {
             case NOTES:
+                if (includeArchive(uri)) {
+                    qb.setTables(NoteArchive.ALL_NOTES);
+                }
+                qb.setProjectionMap(sNotesProjectionMap);
+                break;
+
+            case NOTE_SEARCH: {
+                // Narrow down with the n-gram index, then verify the
+                // candidates, so the result is exactly what LIKE would give.
+                if (includeArchive(uri)) {
+                    qb.setTables(NoteArchive.ALL_NOTES);
+                }
                 qb.setProjectionMap(sNotesProjectionMap);
+                String query = uri.getQueryParameter(NoteColumns.SEARCH_QUERY);
+                if (query == null) {
+                    query = "";
+                }
+                // Until every note is indexed, LIKE alone has to scan them.
+                String candidates = mMigrations.isPending(MIGRATION_NOTE_INDEX) ? null
+                        : NgramIndex.candidates(NgramIndex.grams(query));
+                if (candidates != null) {
+                    qb.appendWhere(candidates);
+                }
+                String pattern = "%" + escapeLike(query) + "%";
+                selection = "(" + NoteColumns.TITLE + " LIKE ? ESCAPE '\\' OR "
+                        + NoteColumns.NOTE + " LIKE ? ESCAPE '\\')"
+                        + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+                selectionArgs = prepend(selectionArgs, pattern, pattern);
+                notificationUri = NoteColumns.CONTENT_URI;
+                break;
+            }
+
+            case NOTE_LINKS:
+                // Until every note is indexed the graph is partial; ROOT_URI
+                // is notified once it is complete.
+                qb.setTables(LinkGraph.TABLE);
+                qb.setProjectionMap(sLinksProjectionMap);
+                qb.appendWhere(Links.SOURCE_ID + "=" + uri.getPathSegments().get(1));
+                defaultOrderBy = Links.TARGET_TITLE;
+                notificationUri = ROOT_URI;
+                break;
+
+            case NOTE_BACKLINKS:
+                // Driven by the target index of the edges: O(backlinks).
+                // Partial, like the links, until every note is indexed.
+                qb.setTables(LinkGraph.TABLE + " JOIN "
+                        + (includeArchive(uri) ? NoteArchive.ALL_NOTES : NOTES_TABLE_NAME)
+                        + " ON (" + NOTES_TABLE_NAME + "." + NoteColumns._ID + "="
+                        + LinkGraph.TABLE + "." + Links.SOURCE_ID + ")");
+                qb.setProjectionMap(sBacklinksProjectionMap);
+                qb.appendWhere(LinkGraph.TABLE + "." + Links.TARGET_ID + "="
+                        + uri.getPathSegments().get(1));
+                notificationUri = ROOT_URI;
                 break;
 
             case NOTE_ID:
+                // Reading an archived note leaves it there; it is moved back
+                // when it is written.
+                if (mArchive.isAttached()) {
+                    qb.setTables(NoteArchive.ALL_NOTES);
+                }
                 qb.setProjectionMap(sNotesProjectionMap);
                 qb.appendWhere(NoteColumns._ID + "=" + uri.getPathSegments().get(1));
                 break;
 
+            case TAGS:
+                qb.setTables(TAGS_TABLE_NAME);
+                qb.setProjectionMap(sTagsProjectionMap);
+                defaultOrderBy = Tags.DEFAULT_SORT_ORDER;
+                notificationUri = ROOT_URI;
+                break;
+
+            case TAG_ID:
+                qb.setTables(TAGS_TABLE_NAME);
+                qb.setProjectionMap(sTagsProjectionMap);
+                qb.appendWhere(Tags._ID + "=" + uri.getPathSegments().get(1));
+                defaultOrderBy = Tags.DEFAULT_SORT_ORDER;
+                notificationUri = ROOT_URI;
+                break;
+
+            case TAG_NOTES:
+                // Driven by the tag side index of the join table, so only the
+                // tagged notes are ever visited.
+                qb.setTables((includeArchive(uri) ? NoteArchive.ALL_NOTES : NOTES_TABLE_NAME)
+                        + " JOIN " + NOTE_TAGS_TABLE_NAME + " ON ("
+                        + NOTE_TAGS_TABLE_NAME + "." + Tags.NOTE_ID + "=" + NOTES_TABLE_NAME
+                        + "." + NoteColumns._ID + ")");
+                qb.setProjectionMap(sNotesProjectionMap);
+                qb.appendWhere(NOTE_TAGS_TABLE_NAME + "." + NOTE_TAGS_TAG_ID + "="
+                        + uri.getPathSegments().get(1));
+                notificationUri = ROOT_URI;
+                break;
+
+            case NOTE_TAGS:
+                qb.setTables(TAGS_TABLE_NAME + " JOIN " + NOTE_TAGS_TABLE_NAME + " ON ("
+                        + NOTE_TAGS_TABLE_NAME + "." + NOTE_TAGS_TAG_ID + "=" + TAGS_TABLE_NAME
+                        + "." + Tags._ID + ")");
+                qb.setProjectionMap(sTagsProjectionMap);
+                qb.appendWhere(NOTE_TAGS_TABLE_NAME + "." + Tags.NOTE_ID + "="
+                        + uri.getPathSegments().get(1));
+                defaultOrderBy = Tags.DEFAULT_SORT_ORDER;
+                notificationUri = ROOT_URI;
+                break;
+
             case LIVE_FOLDER_NOTES:
                 qb.setProjectionMap(sLiveFolderProjectionMap);
                 break;
 
+            case STATS:
+                return mStats.toCursor();
+
+            case CORPUS_STATS: {
+                Cursor c = mCorpusStats.query();
+                c.setNotificationUri(getContext().getContentResolver(),
+                        NoteColumns.CONTENT_URI);
+                return c;
+            }
+
+            case NOTE_SECTIONS:
+                return querySections(uri, start);
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -121,18 +616,62 @@ public class NotePadProvider extends ContentProvider {
         // If no sort order is specified use the default
         String orderBy;
         if (TextUtils.isEmpty(sortOrder)) {
-            orderBy = NoteColumns.DEFAULT_SORT_ORDER;
+            orderBy = defaultOrderBy;
         } else {
             orderBy = sortOrder;
         }
+        if (orderBy != null && orderBy.contains(NoteColumns.SORT_KEY)
+                && mMigrations.isPending(MIGRATION_SORT_KEYS)) {
+            // Not every note has a key yet. Rather than wait for the backfill,
+            // sort by the title as well as SQLite can.
+            orderBy = orderBy.replace(NoteColumns.SORT_KEY, SORT_KEY_FALLBACK);
+        }
 
-        // Get the database and run the query
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        // Run the query
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy, null,
+                cancellationSignal);
 
         // Tell the cursor what uri to watch, so it knows when its source data
         // changes
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        c.setNotificationUri(getContext().getContentResolver(), notificationUri);
+
+        // getCount() runs the query now, so the recorded latency covers the
+        // actual work rather than just compiling the statement. It also
+        // honors the cancellation signal.
+        final int type = statsType(match);
+        final int rows = c.getCount();
+        mStats.record(type, ProviderStats.OP_QUERY, start, rows, 0);
+        if (mSlowQueries.isSlow(start)) {
+            mSlowQueries.record(db, uri, qb.buildQuery(projection, selection, null, null,
+                    orderBy, null), selectionArgs, start, rows);
+        }
+        final int noteColumn = c.getColumnIndex(NoteColumns.NOTE);
+        if (noteColumn >= 0) {
+            c = new ProviderStats.NoteBytesCursor(c, mStats, type, noteColumn);
+        }
+        return c;
+    }
+
+    /**
+     * Counts notes per title section. This only reads the sort key index.
+     * Until every note has a key, the sections are the first letters of
+     * the titles instead, in the order of {@link #SORT_KEY_FALLBACK}.
+     */
+    private Cursor querySections(Uri uri, long start) {
+        final boolean pending = mMigrations.isPending(MIGRATION_SORT_KEYS);
+        final String section = pending ? "upper(substr(" + NoteColumns.TITLE + ",1,1))"
+                : "substr(" + NoteColumns.SORT_KEY + ",1,1)";
+        final String sql = "SELECT " + section + " AS " + NoteColumns.SECTION + ", COUNT(*) AS "
+                + NoteColumns._COUNT + " FROM " + NOTES_TABLE_NAME + " GROUP BY " + section
+                + " ORDER BY " + section + (pending ? " COLLATE LOCALIZED" : "");
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(sql, null);
+        c.setNotificationUri(getContext().getContentResolver(), NoteColumns.CONTENT_URI);
+        // getCount() runs the query, so it has to come before the timing.
+        final int rows = c.getCount();
+        if (mSlowQueries.isSlow(start)) {
+            mSlowQueries.record(db, uri, sql, null, start, rows);
+        }
         return c;
     }
 
@@ -141,21 +680,63 @@ public class NotePadProvider extends ContentProvider {
         switch (sUriMatcher.match(uri)) {
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case NOTE_SECTIONS:
+            case TAG_NOTES:
+            case NOTE_SEARCH:
+            case NOTE_BACKLINKS:
                 return NoteColumns.CONTENT_TYPE;
 
+            case NOTE_LINKS:
+                return Links.CONTENT_TYPE;
+
+            case TAGS:
+            case NOTE_TAGS:
+                return Tags.CONTENT_TYPE;
+
+            case TAG_ID:
+                return Tags.CONTENT_ITEM_TYPE;
+
             case NOTE_ID:
                 return NoteColumns.CONTENT_ITEM_TYPE;
 
+            case STATS:
+                return NotePad.Stats.CONTENT_TYPE;
+
+            case CORPUS_STATS:
+                return NotePad.Corpus.CONTENT_TYPE;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
     }
 
     @Override
-    public Uri insert(Uri uri, ContentValues initialValues) {
+    public Uri insert(final Uri uri, final ContentValues initialValues) {
+        return mWriter.submit(new GroupCommitWriter.Write<Uri>() {
+            @Override
+            public Uri run() {
+                return insertInTransaction(uri, initialValues);
+            }
+        });
+    }
+
+    private Uri insertInTransaction(Uri uri, ContentValues initialValues) {
+        final long start = System.nanoTime();
         // Validate the requested uri
-        if (sUriMatcher.match(uri) != NOTES) {
-            throw new IllegalArgumentException("Unknown URI " + uri);
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case NOTES:
+                break;
+
+            case TAGS:
+            case TAG_NOTES:
+            case NOTE_TAGS:
+                Uri result = insertTag(uri, match, initialValues);
+                mStats.recordPending(statsType(match), ProviderStats.OP_INSERT, start, 1, 0);
+                return result;
+
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
         ContentValues values;
@@ -184,68 +765,694 @@ public class NotePadProvider extends ContentProvider {
             values.put(NoteColumns.NOTE, "");
         }
 
+        values.put(NoteColumns.SORT_KEY,
+                SortKeys.forTitle(values.getAsString(NoteColumns.TITLE)));
+
+        values.put(NoteColumns.CONTENT_HASH,
+                ContentHash.hash(values.getAsString(NoteColumns.NOTE)));
+        values.remove(NoteColumns.VERSION);
+
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long nextId = mArchive.nextId(db);
+        if (nextId > 0) {
+            values.put(NoteColumns._ID, nextId);
+        }
         long rowId = db.insert(NOTES_TABLE_NAME, NoteColumns.NOTE, values);
         if (rowId > 0) {
+            if (values.get(NoteColumns.DUE_AT) != null) {
+                mRemindersChanged = true;
+            }
+            indexNote(db, rowId, values.getAsString(NoteColumns.TITLE),
+                    values.getAsString(NoteColumns.NOTE));
+            mCorpusChanged.add(rowId);
             Uri noteUri = ContentUris.withAppendedId(NoteColumns.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(noteUri, NOTE_ID);
+            mStats.recordPending(statsType(NOTES), ProviderStats.OP_INSERT, start, 1,
+                    ProviderStats.bytesOf(values.getAsString(NoteColumns.NOTE)));
             return noteUri;
         }
 
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Creates a tag, or links a note and a tag. Both are idempotent: an
+     * existing tag or link is returned as is.
+     */
+    private Uri insertTag(Uri uri, int match, ContentValues values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Uri result;
+        db.beginTransaction();
+        try {
+            switch (match) {
+                case TAGS: {
+                    long tagId = getOrCreateTag(db, values.getAsString(Tags.NAME));
+                    result = ContentUris.withAppendedId(Tags.CONTENT_URI, tagId);
+                    break;
+                }
+
+                case NOTE_TAGS: {
+                    long noteId = Long.parseLong(uri.getPathSegments().get(1));
+                    long tagId = getOrCreateTag(db, values.getAsString(Tags.NAME));
+                    linkTag(db, noteId, tagId);
+                    result = ContentUris.withAppendedId(Tags.CONTENT_URI, tagId);
+                    break;
+                }
+
+                default: {
+                    long tagId = Long.parseLong(uri.getPathSegments().get(1));
+                    long noteId = values.getAsLong(Tags.NOTE_ID);
+                    linkTag(db, noteId, tagId);
+                    result = ContentUris.withAppendedId(NoteColumns.CONTENT_URI, noteId);
+                    break;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyChange(Tags.CONTENT_URI, TAGS);
+        return result;
+    }
+
+    private static long getOrCreateTag(SQLiteDatabase db, String name) {
+        if (TextUtils.isEmpty(name) || TextUtils.isEmpty(name.trim())) {
+            throw new IllegalArgumentException("Tag name must not be empty");
+        }
+        name = name.trim();
+        ContentValues values = new ContentValues();
+        values.put(Tags.NAME, name);
+        long tagId = db.insertWithOnConflict(TAGS_TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (tagId == -1) {
+            tagId = DatabaseUtils.longForQuery(db, "SELECT " + Tags._ID + " FROM "
+                    + TAGS_TABLE_NAME + " WHERE " + Tags.NAME + "=?", new String[] {
+                    name
+            });
+        }
+        return tagId;
+    }
+
+    /**
+     * Links a note and a tag, both of which must exist; otherwise the link
+     * would be an orphan that still counts towards the tag's notes.
+     */
+    private void linkTag(SQLiteDatabase db, long noteId, long tagId) {
+        final String[] noteArgs = new String[] {
+            Long.toString(noteId)
+        };
+        final String noteWhere = " WHERE " + NoteColumns._ID + "=?";
+        if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + NOTES_TABLE_NAME
+                + noteWhere, noteArgs) == 0
+                && (!mArchive.isAttached() || DatabaseUtils.longForQuery(db,
+                        "SELECT COUNT(*) FROM " + NoteArchive.TABLE + noteWhere, noteArgs) == 0)) {
+            throw new IllegalArgumentException("No note " + noteId);
+        }
+        if (DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TAGS_TABLE_NAME + " WHERE "
+                + Tags._ID + "=" + tagId, null) == 0) {
+            throw new IllegalArgumentException("No tag " + tagId);
+        }
+        ContentValues values = new ContentValues();
+        values.put(Tags.NOTE_ID, noteId);
+        values.put(NOTE_TAGS_TAG_ID, tagId);
+        db.insertWithOnConflict(NOTE_TAGS_TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Deletes the notes matching a selection from both tiers.
+     */
+    private int deleteNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        int count = deleteNotes(db, NOTES_TABLE_NAME, where, whereArgs);
+        if (mArchive.isAttached()) {
+            count += deleteNotes(db, NoteArchive.TABLE, where, whereArgs);
+        }
+        return count;
+    }
+
+    private int deleteNotes(SQLiteDatabase db, String table, String where,
+            String[] whereArgs) {
+        final long[] ids = selectIds(db, table, where, whereArgs);
+        if (ids.length == 0) {
+            return 0;
+        }
+        corpusChanged(ids);
+        deleteNoteTags(db, table, where, whereArgs);
+        NgramIndex.delete(db, table, where, whereArgs);
+        int count = db.delete(table, where, whereArgs);
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_STATEMENT) {
+            LinkGraph.onDeleted(db, mArchive.isAttached(), joinIds(ids, start,
+                    Math.min(start + MAX_IDS_PER_STATEMENT, ids.length)));
+        }
+        return count;
+    }
+
+    /**
+     * Records notes for the corpus statistics to read again once the
+     * current group has committed.
+     */
+    private void corpusChanged(long[] ids) {
+        for (long id : ids) {
+            mCorpusChanged.add(id);
+        }
+    }
+
+    /**
+     * Brings the search index and link graph of one note in line with its
+     * title and text.
+     */
+    private void indexNote(SQLiteDatabase db, long id, String title, String note) {
+        NgramIndex.index(db, id, title, note);
+        LinkGraph.update(db, mArchive.isAttached(), id, title, note);
+    }
+
+    /**
+     * Reindexes the notes of table matching a selection, e.g. after an update
+     * of their text.
+     */
+    private void indexNotes(SQLiteDatabase db, String table, String selection) {
+        Cursor c = db.query(table, new String[] {
+                NoteColumns._ID, NoteColumns.TITLE, NoteColumns.NOTE
+        }, selection, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                indexNote(db, c.getLong(0), c.getString(1), c.getString(2));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * The ids of the notes of table matching a selection.
+     */
+    private static long[] selectIds(SQLiteDatabase db, String table, String where,
+            String[] whereArgs) {
+        Cursor c = db.query(table, new String[] {
+                NoteColumns._ID
+        }, where, whereArgs, null, null, null);
+        try {
+            final long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Ids from start to end as a comma separated list, for an IN clause of
+     * at most {@link #MAX_IDS_PER_STATEMENT} ids.
+     */
+    private static String joinIds(long[] ids, int start, int end) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                sb.append(',');
+            }
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Unlinks the notes matching a selection on table from their tags, so
+     * the note counts drop before the notes themselves go.
+     */
+    private static void deleteNoteTags(SQLiteDatabase db, String table, String where,
+            String[] whereArgs) {
+        db.delete(NOTE_TAGS_TABLE_NAME, Tags.NOTE_ID + " IN (SELECT " + NoteColumns._ID
+                + " FROM " + table
+                + (!TextUtils.isEmpty(where) ? " WHERE " + where : "") + ")", whereArgs);
+    }
+
+    /**
+     * Deletes tags or note-tag links. Deleting links goes through the join
+     * table triggers, which keep the note counts current.
+     */
+    private int deleteTag(SQLiteDatabase db, Uri uri, int match, String where,
+            String[] whereArgs) {
+        final String extra = !TextUtils.isEmpty(where) ? " AND (" + where + ')' : "";
+        switch (match) {
+            case TAG_ID: {
+                String tagId = uri.getPathSegments().get(1);
+                db.delete(NOTE_TAGS_TABLE_NAME, NOTE_TAGS_TAG_ID + "=" + tagId, null);
+                return db.delete(TAGS_TABLE_NAME, Tags._ID + "=" + tagId + extra, whereArgs);
+            }
+
+            case TAG_NOTES:
+                return db.delete(NOTE_TAGS_TABLE_NAME, NOTE_TAGS_TAG_ID + "="
+                        + uri.getPathSegments().get(1) + extra, whereArgs);
+
+            default:
+                // NOTE_TAGS; the selection is on the tags table.
+                return db.delete(NOTE_TAGS_TABLE_NAME, Tags.NOTE_ID + "="
+                        + uri.getPathSegments().get(1) + " AND " + NOTE_TAGS_TAG_ID
+                        + " IN (SELECT " + Tags._ID + " FROM " + TAGS_TABLE_NAME
+                        + (!TextUtils.isEmpty(where) ? " WHERE " + where : "") + ")", whereArgs);
+        }
+    }
+
     @Override
-    public int delete(Uri uri, String where, String[] whereArgs) {
+    public int delete(final Uri uri, final String where, final String[] whereArgs) {
+        return mWriter.submit(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer run() {
+                return deleteInTransaction(uri, where, whereArgs);
+            }
+        });
+    }
+
+    private int deleteInTransaction(Uri uri, String where, String[] whereArgs) {
+        final long start = System.nanoTime();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
-        switch (sUriMatcher.match(uri)) {
-            case NOTES:
-                count = db.delete(NOTES_TABLE_NAME, where, whereArgs);
-                break;
+        final int match = sUriMatcher.match(uri);
+        db.beginTransaction();
+        try {
+            switch (match) {
+                case NOTES:
+                    count = deleteNotes(db, where, whereArgs);
+                    mRemindersChanged |= count > 0;
+                    break;
 
-            case NOTE_ID:
-                String noteId = uri.getPathSegments().get(1);
-                count = db.delete(NOTES_TABLE_NAME, NoteColumns._ID + "=" + noteId
-                        + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
-                break;
+                case NOTE_ID:
+                    String noteId = uri.getPathSegments().get(1);
+                    String noteWhere = NoteColumns._ID + "=" + noteId
+                            + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : "");
+                    count = deleteNotes(db, noteWhere, whereArgs);
+                    mRemindersChanged |= count > 0;
+                    break;
 
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+                case TAG_ID:
+                case TAG_NOTES:
+                case NOTE_TAGS:
+                    count = deleteTag(db, uri, match, where, whereArgs);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (match == TAG_ID || match == TAG_NOTES || match == NOTE_TAGS) {
+            notifyChange(Tags.CONTENT_URI, TAGS);
+        } else {
+            notifyChange(uri, match);
+        }
+        mStats.recordPending(statsType(match), ProviderStats.OP_DELETE, start, count, 0);
         return count;
     }
 
     @Override
-    public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+    public int update(final Uri uri, final ContentValues values, final String where,
+            final String[] whereArgs) {
+        return mWriter.submit(new GroupCommitWriter.Write<Integer>() {
+            @Override
+            public Integer run() {
+                return updateInTransaction(uri, values, where, whereArgs);
+            }
+        });
+    }
+
+    private int updateInTransaction(Uri uri, ContentValues values, String where,
+            String[] whereArgs) {
+        final long start = System.nanoTime();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
-        switch (sUriMatcher.match(uri)) {
+        final int match = sUriMatcher.match(uri);
+
+        // The version is owned by the provider; the hash follows the text.
+        values = new ContentValues(values);
+        values.remove(NoteColumns.VERSION);
+        if (values.containsKey(NoteColumns.NOTE)) {
+            values.put(NoteColumns.CONTENT_HASH,
+                    ContentHash.hash(values.getAsString(NoteColumns.NOTE)));
+        } else {
+            values.remove(NoteColumns.CONTENT_HASH);
+        }
+        if (values.containsKey(NoteColumns.TITLE)) {
+            values.put(NoteColumns.SORT_KEY,
+                    SortKeys.forTitle(values.getAsString(NoteColumns.TITLE)));
+        } else {
+            values.remove(NoteColumns.SORT_KEY);
+        }
+
+        final boolean reindex = values.containsKey(NoteColumns.NOTE)
+                || values.containsKey(NoteColumns.TITLE);
+        if (values.containsKey(NoteColumns.DUE_AT)) {
+            mRemindersChanged = true;
+        }
+        final boolean corpus = values.containsKey(NoteColumns.NOTE)
+                || values.containsKey(NoteColumns.CREATED_DATE);
+        switch (match) {
             case NOTES:
+                if (!reindex) {
+                    count = db.update(NOTES_TABLE_NAME, values, where, whereArgs);
+                    mCorpusAllChanged |= corpus && count > 0;
+                    break;
+                }
+                // The selection may not match the rows once they are updated.
+                final long[] ids = selectIds(db, NOTES_TABLE_NAME, where, whereArgs);
                 count = db.update(NOTES_TABLE_NAME, values, where, whereArgs);
+                for (int i = 0; i < ids.length; i += MAX_IDS_PER_STATEMENT) {
+                    indexNotes(db, NOTES_TABLE_NAME, NoteColumns._ID + " IN (" + joinIds(ids,
+                            i, Math.min(i + MAX_IDS_PER_STATEMENT, ids.length)) + ")");
+                }
+                if (corpus) {
+                    corpusChanged(ids);
+                }
                 break;
 
             case NOTE_ID:
                 String noteId = uri.getPathSegments().get(1);
-                count = db.update(NOTES_TABLE_NAME, values, NoteColumns._ID + "=" + noteId
+                // Writing an archived note is what brings it back.
+                if (mArchive.restore(db, Long.parseLong(noteId))) {
+                    notifyChange(NoteColumns.CONTENT_URI, NOTES);
+                }
+                String selection = NoteColumns._ID + "=" + noteId;
+                String expected = uri.getQueryParameter(NoteColumns.EXPECTED_VERSION);
+                if (expected != null) {
+                    selection += " AND " + NoteColumns.VERSION + "=" + Long.parseLong(expected);
+                    if (isUnchanged(db, selection, values)) {
+                        // Nothing to write, and nobody else has written since.
+                        mStats.recordPending(statsType(match), ProviderStats.OP_UPDATE,
+                                start, 0, 0);
+                        return 1;
+                    }
+                }
+                count = db.update(NOTES_TABLE_NAME, values, selection
                         + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+                if (count > 0 && reindex) {
+                    indexNotes(db, NOTES_TABLE_NAME, NoteColumns._ID + "=" + noteId);
+                }
+                if (count > 0 && corpus) {
+                    mCorpusChanged.add(Long.parseLong(noteId));
+                }
                 break;
 
+            case TAG_ID:
+                // Only the name can change; the note count is maintained by triggers.
+                ContentValues tagValues = new ContentValues();
+                tagValues.put(Tags.NAME, values.getAsString(Tags.NAME));
+                count = db.update(TAGS_TABLE_NAME, tagValues, Tags._ID + "="
+                        + uri.getPathSegments().get(1)
+                        + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+                if (count > 0) {
+                    notifyChange(Tags.CONTENT_URI, TAGS);
+                }
+                mStats.recordPending(statsType(match), ProviderStats.OP_UPDATE, start, count, 0);
+                return count;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count == 0) {
+            // A version conflict or a missing row; nothing changed.
+            mStats.recordPending(statsType(match), ProviderStats.OP_UPDATE, start, 0, 0);
+            return 0;
+        }
+        notifyChange(uri, match);
+        mStats.recordPending(statsType(match), ProviderStats.OP_UPDATE, start, count,
+                ProviderStats.bytesOf(values.getAsString(NoteColumns.NOTE)));
         return count;
     }
 
+    /**
+     * Whether the note matched by selection already holds the text and title
+     * the update would write, so the update can be skipped. Only updates that
+     * touch nothing but the text, title and modified date qualify.
+     */
+    private static boolean isUnchanged(SQLiteDatabase db, String selection,
+            ContentValues values) {
+        if (!values.containsKey(NoteColumns.NOTE)) {
+            return false;
+        }
+        for (String key : values.keySet()) {
+            if (!NoteColumns.NOTE.equals(key) && !NoteColumns.TITLE.equals(key)
+                    && !NoteColumns.MODIFIED_DATE.equals(key)
+                    && !NoteColumns.CONTENT_HASH.equals(key)) {
+                return false;
+            }
+        }
+        String sql = "SELECT COUNT(*) FROM " + NOTES_TABLE_NAME + " WHERE " + selection
+                + " AND " + NoteColumns.CONTENT_HASH + "=?";
+        String hash = values.getAsString(NoteColumns.CONTENT_HASH);
+        String[] args;
+        if (values.containsKey(NoteColumns.TITLE)) {
+            sql += " AND " + NoteColumns.TITLE + " IS ?";
+            args = new String[] {
+                    hash, values.getAsString(NoteColumns.TITLE)
+            };
+        } else {
+            args = new String[] {
+                    hash
+            };
+        }
+        return DatabaseUtils.longForQuery(db, sql, args) > 0;
+    }
+
+    private void notifyChange(Uri uri, int match) {
+        if (mApplyingBatch.get() == Boolean.TRUE) {
+            // applyBatch() sends one notification for the whole batch.
+            return;
+        }
+        if (mWriter.isWriterThread()) {
+            // Observers must not requery before the write is committed.
+            mPendingNotifications.add(uri);
+            mStats.recordNotificationPending(statsType(match));
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+            mStats.recordNotification(statsType(match));
+        }
+    }
+
+    /**
+     * Applies all operations in one transaction and sends a single change
+     * notification at the end, instead of one per operation.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(
+            final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        try {
+            // The batch is one write, so it commits atomically with its group.
+            return mWriter.submit(new GroupCommitWriter.Write<ContentProviderResult[]>() {
+                @Override
+                public ContentProviderResult[] run() throws OperationApplicationException {
+                    ContentProviderResult[] results;
+                    mApplyingBatch.set(Boolean.TRUE);
+                    try {
+                        results = NotePadProvider.super.applyBatch(operations);
+                    } finally {
+                        mApplyingBatch.set(Boolean.FALSE);
+                    }
+                    notifyChange(NoteColumns.CONTENT_URI, NOTES);
+                    return results;
+                }
+            });
+        } catch (GroupCommitWriter.WriteException e) {
+            if (e.getCause() instanceof OperationApplicationException) {
+                throw (OperationApplicationException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Answers the methods of {@link Calls} with a bundle, without the cursor,
+     * window and binder plumbing a query would need. Recorded in the stats
+     * as calls on "notes", or on "notes/#" for a single id, next to the
+     * queries they replace.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        final long start = System.nanoTime();
+        final Bundle result = new Bundle();
+        if (Calls.METHOD_COUNT.equals(method)) {
+            SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+            long count = DatabaseUtils.queryNumEntries(db, NOTES_TABLE_NAME);
+            if (extras != null && extras.getBoolean(Calls.EXTRA_INCLUDE_ARCHIVE)
+                    && mArchive.isAttached()) {
+                count += DatabaseUtils.queryNumEntries(db, NoteArchive.TABLE);
+            }
+            result.putLong(Calls.RESULT, count);
+            mStats.record(statsType(NOTES), ProviderStats.OP_CALL, start, 1, 0);
+            return result;
+        }
+        if (!Calls.METHOD_EXISTS.equals(method) && !Calls.METHOD_GET_TITLE.equals(method)
+                && !Calls.METHOD_TOUCH.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+
+        final boolean bulk = arg == null;
+        final long[] ids;
+        if (!bulk) {
+            ids = new long[] {
+                Long.parseLong(arg)
+            };
+        } else if (extras != null && extras.getLongArray(Calls.EXTRA_IDS) != null) {
+            ids = extras.getLongArray(Calls.EXTRA_IDS);
+        } else {
+            throw new IllegalArgumentException("No note ids for " + method);
+        }
+
+        if (Calls.METHOD_TOUCH.equals(method)) {
+            result.putInt(Calls.RESULT, mWriter.submit(new GroupCommitWriter.Write<Integer>() {
+                @Override
+                public Integer run() {
+                    return touchInTransaction(ids);
+                }
+            }));
+        } else if (Calls.METHOD_EXISTS.equals(method)) {
+            final boolean[] exists = lookUpExists(ids);
+            if (bulk) {
+                result.putBooleanArray(Calls.RESULT, exists);
+            } else {
+                result.putBoolean(Calls.RESULT, exists[0]);
+            }
+        } else {
+            final String[] titles = lookUpTitles(ids);
+            if (bulk) {
+                result.putStringArray(Calls.RESULT, titles);
+            } else {
+                result.putString(Calls.RESULT, titles[0]);
+            }
+        }
+        mStats.record(statsType(bulk ? NOTES : NOTE_ID), ProviderStats.OP_CALL, start,
+                ids.length, 0);
+        return result;
+    }
+
+    /**
+     * One statement over both tiers taking a note id as ?1, so every id
+     * costs a primary key lookup per tier and no cursor.
+     */
+    private SQLiteStatement compileLookUp(String hot, String archived) {
+        return mOpenHelper.getReadableDatabase().compileStatement(mArchive.isAttached()
+                ? "SELECT IFNULL((" + hot + "), (" + archived + "))" : "SELECT (" + hot + ")");
+    }
+
+    private boolean[] lookUpExists(long[] ids) {
+        final String where = " WHERE " + NoteColumns._ID + "=?1";
+        SQLiteStatement statement = compileLookUp(
+                "SELECT 1 FROM " + NOTES_TABLE_NAME + where,
+                "SELECT 1 FROM " + NoteArchive.TABLE + where);
+        final boolean[] exists = new boolean[ids.length];
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                statement.bindLong(1, ids[i]);
+                exists[i] = statement.simpleQueryForString() != null;
+            }
+        } finally {
+            statement.close();
+        }
+        return exists;
+    }
+
+    private String[] lookUpTitles(long[] ids) {
+        final String where = " WHERE " + NoteColumns._ID + "=?1";
+        SQLiteStatement statement = compileLookUp(
+                "SELECT " + NoteColumns.TITLE + " FROM " + NOTES_TABLE_NAME + where,
+                "SELECT " + NoteColumns.TITLE + " FROM " + NoteArchive.TABLE + where);
+        final String[] titles = new String[ids.length];
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                statement.bindLong(1, ids[i]);
+                titles[i] = statement.simpleQueryForString();
+            }
+        } finally {
+            statement.close();
+        }
+        return titles;
+    }
+
+    /**
+     * Sets the modification time of notes to now. Archived notes are moved
+     * back first, as touching a note means it is in use again.
+     */
+    private int touchInTransaction(long[] ids) {
+        if (ids.length == 0) {
+            return 0;
+        }
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final StringBuilder selection = new StringBuilder(NoteColumns._ID + " IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (mArchive.restore(db, ids[i])) {
+                notifyChange(NoteColumns.CONTENT_URI, NOTES);
+            }
+            selection.append(i > 0 ? "," : "").append(ids[i]);
+        }
+        selection.append(')');
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.MODIFIED_DATE, System.currentTimeMillis());
+        return updateInTransaction(NoteColumns.CONTENT_URI, values, selection.toString(), null);
+    }
+
+    /**
+     * Maps a {@link UriMatcher} code to its {@link ProviderStats} URI type, or
+     * -1 for URIs that are not tracked.
+     */
+    private static int statsType(int match) {
+        switch (match) {
+            case NOTES:
+                return 0;
+            case NOTE_ID:
+                return 1;
+            case LIVE_FOLDER_NOTES:
+                return 2;
+            case TAGS:
+                return 3;
+            case TAG_ID:
+                return 4;
+            case TAG_NOTES:
+                return 5;
+            case NOTE_TAGS:
+                return 6;
+            case NOTE_SEARCH:
+                return 7;
+            case NOTE_LINKS:
+                return 8;
+            case NOTE_BACKLINKS:
+                return 9;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mStats.dump(writer);
+        mWriter.dump(writer);
+        mMigrations.dump(writer);
+        mReminders.dump(writer);
+        mCorpusStats.dump(writer);
+        mSlowQueries.dump(writer);
+        NgramIndex.dump(mOpenHelper.getReadableDatabase(), writer);
+        IoWatchdog.dump(writer);
+    }
+
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes", NOTES);
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/sections", NOTE_SECTIONS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTE_SEARCH);
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "stats", STATS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "stats/corpus", CORPUS_STATS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "tags", TAGS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "tags/#", TAG_ID);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "tags/#/notes", TAG_NOTES);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/tags", NOTE_TAGS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/links", NOTE_LINKS);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/backlinks", NOTE_BACKLINKS);
 
         sNotesProjectionMap = new HashMap<String, String>();
         sNotesProjectionMap.put(NoteColumns._ID, NoteColumns._ID);
@@ -253,6 +1460,26 @@ public class NotePadProvider extends ContentProvider {
         sNotesProjectionMap.put(NoteColumns.NOTE, NoteColumns.NOTE);
         sNotesProjectionMap.put(NoteColumns.CREATED_DATE, NoteColumns.CREATED_DATE);
         sNotesProjectionMap.put(NoteColumns.MODIFIED_DATE, NoteColumns.MODIFIED_DATE);
+        sNotesProjectionMap.put(NoteColumns.CONTENT_HASH, NoteColumns.CONTENT_HASH);
+        sNotesProjectionMap.put(NoteColumns.VERSION, NoteColumns.VERSION);
+        sNotesProjectionMap.put(NoteColumns.SORT_KEY, NoteColumns.SORT_KEY);
+        sNotesProjectionMap.put(NoteColumns.DUE_AT, NoteColumns.DUE_AT);
+
+        sTagsProjectionMap = new HashMap<String, String>();
+        sTagsProjectionMap.put(Tags._ID, TAGS_TABLE_NAME + "." + Tags._ID + " AS " + Tags._ID);
+        sTagsProjectionMap.put(Tags.NAME, Tags.NAME);
+        sTagsProjectionMap.put(Tags.NOTE_COUNT, Tags.NOTE_COUNT);
+
+        sLinksProjectionMap = new HashMap<String, String>();
+        sLinksProjectionMap.put(Links._ID, Links._ID);
+        sLinksProjectionMap.put(Links.SOURCE_ID, Links.SOURCE_ID);
+        sLinksProjectionMap.put(Links.TARGET_TITLE, Links.TARGET_TITLE);
+        sLinksProjectionMap.put(Links.TARGET_ID, Links.TARGET_ID);
+
+        // The edges have an _id too, so the note's has to be qualified.
+        sBacklinksProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sBacklinksProjectionMap.put(NoteColumns._ID, NOTES_TABLE_NAME + "." + NoteColumns._ID
+                + " AS " + NoteColumns._ID);
 
         // Support for Live Folders.
         sLiveFolderProjectionMap = new HashMap<String, String>();
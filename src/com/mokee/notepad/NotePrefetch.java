@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * A small cache of note bodies that {@link NotesList} fills ahead of a tap,
+ * for the rows being touched or shown, so {@link NoteEditor} can show the
+ * text before its own query has run. The editor still reads the note from
+ * the provider in the background and trusts that copy over this one.
+ * <p>
+ * Only used on the main thread, apart from the prefetch queries.
+ */
+final class NotePrefetch {
+    private static final String TAG = "NotePrefetch";
+
+    /** Set to false to measure tap to text latency without prefetching. */
+    private static final String PROP_PREFETCH = "debug.notepad.prefetch";
+
+    /** When the list was tapped, in uptime millis, for the latency log. */
+    static final String EXTRA_TAP_TIME = "com.mokee.notepad.extra.TAP_TIME";
+
+    /** The version of the note the list showed when it was tapped. */
+    static final String EXTRA_VERSION = "com.mokee.notepad.extra.VERSION";
+
+    /** Chars of note text kept, across all notes. */
+    private static final int MAX_CHARS = 256 * 1024;
+
+    /** Most notes read by one prefetch query. */
+    private static final int MAX_IDS_PER_QUERY = 24;
+
+    private static final String[] PROJECTION = new String[] {
+            NoteColumns._ID, NoteColumns.NOTE, NoteColumns.CONTENT_HASH, NoteColumns.VERSION
+    };
+
+    static final class Note {
+        final long mId;
+        final String mText;
+        final long mHash;
+        final long mVersion;
+
+        Note(long id, String text, long hash, long version) {
+            mId = id;
+            mText = text;
+            mHash = hash;
+            mVersion = version;
+        }
+    }
+
+    private static final LruCache<Long, Note> sCache = new LruCache<Long, Note>(MAX_CHARS) {
+        @Override
+        protected int sizeOf(Long key, Note value) {
+            return Math.max(1, value.mText.length());
+        }
+    };
+
+    private static final HashSet<Long> sInFlight = new HashSet<Long>();
+
+    /** Bumped by every eviction, so notes read before it are not cached. */
+    private static int sGeneration;
+
+    // Tap to text latency, with and without a prefetched note.
+    private static int sHits;
+    private static long sHitMillis;
+    private static int sMisses;
+    private static long sMissMillis;
+
+    // This class cannot be instantiated
+    private NotePrefetch() {
+    }
+
+    static boolean isEnabled() {
+        return SystemProperties.getBoolean(PROP_PREFETCH, true);
+    }
+
+    /**
+     * The cached copy of a note, unless it is older than version, the one
+     * the list shows, which drops it. A version of -1 means unknown.
+     */
+    static Note get(long id, long version) {
+        final Note note = sCache.get(id);
+        if (note != null && note.mVersion < version) {
+            sCache.remove(id);
+            return null;
+        }
+        return note;
+    }
+
+    /**
+     * Drops the cached copy of a note the list now shows a newer version
+     * of, e.g. after a change made elsewhere.
+     */
+    static void onListed(long id, long version) {
+        get(id, version);
+    }
+
+    /**
+     * Drops the cached copies of notes, e.g. once they are deleted.
+     */
+    static void evict(long... ids) {
+        for (long id : ids) {
+            sCache.remove(id);
+        }
+        sGeneration++;
+    }
+
+    /**
+     * Replaces the cached copy of a note, e.g. with what the editor saved,
+     * so the next tap does not show older text.
+     */
+    static void put(long id, String text, long hash, long version) {
+        if (text != null) {
+            sCache.put(id, new Note(id, text, hash, version));
+        }
+    }
+
+    /**
+     * Reads the given notes in the background, skipping the ones already
+     * being read or cached at the version the list shows.
+     *
+     * @param versions the version of each note in the list, -1 if unknown,
+     *            or null if none is known
+     */
+    static void prefetch(final ContentResolver resolver, long[] ids, long[] versions) {
+        if (!isEnabled()) {
+            return;
+        }
+        final StringBuilder selection = new StringBuilder();
+        final ArrayList<Long> wanted = new ArrayList<Long>();
+        for (int i = 0; i < ids.length; i++) {
+            final long id = ids[i];
+            if (id < 0 || get(id, versions != null ? versions[i] : -1) != null
+                    || !sInFlight.add(id)) {
+                continue;
+            }
+            wanted.add(id);
+            selection.append(selection.length() == 0 ? NoteColumns._ID + " IN (" : ",")
+                    .append(id);
+            if (wanted.size() == MAX_IDS_PER_QUERY) {
+                break;
+            }
+        }
+        if (wanted.isEmpty()) {
+            return;
+        }
+        selection.append(')');
+
+        final int generation = sGeneration;
+        new AsyncTask<Void, Void, ArrayList<Note>>() {
+            @Override
+            protected ArrayList<Note> doInBackground(Void... params) {
+                ArrayList<Note> notes = new ArrayList<Note>(wanted.size());
+                // Through the notes uri, so archived notes are read where
+                // they are instead of being restored.
+                Uri uri = NoteColumns.CONTENT_URI.buildUpon()
+                        .appendQueryParameter(NoteColumns.INCLUDE_ARCHIVE, "true").build();
+                Cursor c;
+                try {
+                    c = resolver.query(uri, PROJECTION, selection.toString(), null, null);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Prefetch failed", e);
+                    return notes;
+                }
+                if (c == null) {
+                    return notes;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        final String text = c.getString(1);
+                        if (text != null) {
+                            notes.add(new Note(c.getLong(0), text, c.isNull(2)
+                                    ? ContentHash.hash(text) : c.getLong(2), c.getLong(3)));
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                return notes;
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<Note> notes) {
+                sInFlight.removeAll(wanted);
+                if (generation != sGeneration) {
+                    // A note may have been deleted after it was read.
+                    return;
+                }
+                for (Note note : notes) {
+                    // The editor may have cached a newer copy meanwhile.
+                    Note cached = sCache.get(note.mId);
+                    if (cached == null || cached.mVersion < note.mVersion) {
+                        sCache.put(note.mId, note);
+                    }
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Logs the time from a tap in the list until the editor drew the text,
+     * along with the running averages with and without a prefetched note.
+     */
+    static void recordTapToText(long millis, boolean prefetched) {
+        if (prefetched) {
+            sHits++;
+            sHitMillis += millis;
+        } else {
+            sMisses++;
+            sMissMillis += millis;
+        }
+        Log.i(TAG, "Tap to text " + millis + "ms, prefetched=" + prefetched
+                + "; average prefetched " + (sHits > 0 ? sHitMillis / sHits : 0) + "ms over "
+                + sHits + ", not prefetched " + (sMisses > 0 ? sMissMillis / sMisses : 0)
+                + "ms over " + sMisses);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.mokee.notepad.NotePad.Tags;
+
+/**
+ * Reads and writes the tags of one note as the comma separated list the
+ * editor shows. Saving only sends the difference against what was loaded,
+ * as one batch.
+ */
+final class NoteTags {
+    private static final String TAG = "NoteTags";
+
+    static final String SEPARATOR = ", ";
+
+    // This class cannot be instantiated
+    private NoteTags() {
+    }
+
+    /**
+     * Loads the tag names of a note, in name order. Must not be called on
+     * the main thread.
+     */
+    static String load(ContentResolver resolver, long noteId) {
+        Cursor c = IoWatchdog.query(resolver, "NoteTags.load", Tags.getTagsOfNoteUri(noteId),
+                new String[] {
+                    Tags.NAME
+                }, null, null, null);
+        if (c == null) {
+            return "";
+        }
+        try {
+            StringBuilder sb = new StringBuilder();
+            while (c.moveToNext()) {
+                if (sb.length() > 0) {
+                    sb.append(SEPARATOR);
+                }
+                sb.append(c.getString(0));
+            }
+            return sb.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Splits a comma separated list into trimmed, non-empty names, keyed by
+     * their lower case form since tag names ignore case.
+     */
+    static Map<String, String> parse(String text) {
+        Map<String, String> names = new LinkedHashMap<String, String>();
+        if (text == null) {
+            return names;
+        }
+        for (String name : text.split("[,，]")) {
+            name = name.trim();
+            if (name.length() > 0) {
+                String key = name.toLowerCase(Locale.ROOT);
+                if (!names.containsKey(key)) {
+                    names.put(key, name);
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Links the note to the tags in text that were not in oldText and unlinks
+     * it from the ones that were removed. Must not be called on the main
+     * thread.
+     */
+    static void save(ContentResolver resolver, long noteId, String oldText, String text) {
+        Map<String, String> oldNames = parse(oldText);
+        Map<String, String> names = parse(text);
+        Uri uri = Tags.getTagsOfNoteUri(noteId);
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (Map.Entry<String, String> entry : oldNames.entrySet()) {
+            if (!names.containsKey(entry.getKey())) {
+                operations.add(ContentProviderOperation.newDelete(uri)
+                        .withSelection(Tags.NAME + "=?", new String[] {
+                            entry.getValue()
+                        }).build());
+            }
+        }
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            if (!oldNames.containsKey(entry.getKey())) {
+                operations.add(ContentProviderOperation.newInsert(uri)
+                        .withValue(Tags.NAME, entry.getValue()).build());
+            }
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            resolver.applyBatch(NotePad.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to save tags of note " + noteId, e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "Failed to save tags of note " + noteId, e);
+        }
+    }
+}
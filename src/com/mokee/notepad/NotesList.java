@@ -16,34 +16,55 @@
 
 package com.mokee.notepad;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ListActivity;
-import android.content.ComponentName;
+import android.content.AsyncQueryHandler;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.res.Configuration;
 import android.database.Cursor;
+import android.database.DataSetObserver;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
 import android.os.Parcelable;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.text.format.DateUtils;
 import android.util.Log;
-import android.view.ContextMenu;
-import android.view.ContextMenu.ContextMenuInfo;
+import android.view.ActionMode;
 import android.view.Menu;
-import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
-import android.widget.AdapterView;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
+import android.widget.CursorAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.SearchView;
+import android.widget.SectionIndexer;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.mokee.notepad.NotePad.NoteColumns;
+import com.mokee.notepad.NotePad.Tags;
 
 /**
  * Displays a list of notes. Will display notes from the {@link Uri} provided in
@@ -60,14 +81,58 @@ public class NotesList extends ListActivity {
             NoteColumns._ID,
             NoteColumns.TITLE,
             NoteColumns.MODIFIED_DATE,
+            NoteColumns.VERSION,
     };
 
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
 
     /** The dilog index */
-    private static final int SURE_TO_DELETE = 0;
-    private Uri noteUri = null;
+    private static final int SURE_TO_DELETE_SELECTED = 1;
+    /** The notes uri that list ids are appended to. */
+    private Uri mNotesUri;
+
+    /** Ids per IN (...) clause, well under SQLite's bound variable limit. */
+    private static final int MAX_IDS_PER_OPERATION = 500;
+
+    /**
+     * Most chars of note text put into one share intent, well below what a
+     * binder transaction can carry.
+     */
+    private static final int MAX_SHARE_CHARS = 100 * 1024;
+    private long[] mSelectedIds;
+    private ActionMode mActionMode;
+
+    /** Set to false to measure cold starts without the first page snapshot. */
+    private static final String PROP_LIST_SNAPSHOT = "debug.notepad.list_snapshot";
+    private static final long SNAPSHOT_DELAY_MS = 500;
+
+    private final Handler mHandler = new Handler();
+    private NotesQueryHandler mQueryHandler;
+    private boolean mSnapshotEnabled;
+    private boolean mShowingSnapshot;
+
+    private static final String PREF_SORT_BY_TITLE = "sort_by_title";
+    private static final int TOKEN_LIST = 0;
+    private static final int TOKEN_SECTIONS = 1;
+    private static final int TOKEN_TAGS = 2;
+
+    /**
+     * The title shown when listing a subset of the notes, such as the name
+     * of the tag whose notes are listed.
+     */
+    static final String EXTRA_LIST_TITLE = "com.mokee.notepad.extra.LIST_TITLE";
+    private boolean mSortByTitle;
+    private SectionIndex mSectionIndex = SectionIndex.EMPTY;
+
+    /** Rows beyond each edge of the viewport whose notes are prefetched. */
+    private static final int PREFETCH_AROUND = 2;
+    private boolean mPrefetch;
+
+    private static final long FILTER_DELAY_MS = 150;
+    private String mFilter = "";
+    private long mFilterKeyTime;
+    private FilterTask mFilterTask;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -88,11 +153,46 @@ public class NotesList extends ListActivity {
             intent.setData(NoteColumns.CONTENT_URI);
         }
 
-        getListView().setOnCreateContextMenuListener(this);
+        // The notes of a tag or the backlinks of a note are still
+        // addressed through the notes uri.
+        if (isSubsetUri(intent.getData())) {
+            mNotesUri = NoteColumns.CONTENT_URI;
+        } else {
+            mNotesUri = intent.getData();
+        }
+        String title = intent.getStringExtra(EXTRA_LIST_TITLE);
+        if (title != null) {
+            setTitle(title);
+        }
+
+        // Long press selects notes for batch operations, unless we were
+        // started to pick a single one.
+        final String action = intent.getAction();
+        if (!Intent.ACTION_PICK.equals(action) && !Intent.ACTION_GET_CONTENT.equals(action)) {
+            getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+            getListView().setMultiChoiceModeListener(new SelectionModeListener());
+            mPrefetch = NotePrefetch.isEnabled();
+        }
 
-        @SuppressWarnings("deprecation")
-        Cursor cursor = managedQuery(getIntent().getData(), PROJECTION, null, null,
-                NoteColumns.DEFAULT_SORT_ORDER);
+        mSortByTitle = getPreferences(MODE_PRIVATE).getBoolean(PREF_SORT_BY_TITLE, false);
+        mQueryHandler = new NotesQueryHandler();
+
+        // On the default list, draw the snapshot of the first page right away
+        // and let the live query replace it once the database is open.
+        final long createTime = SystemClock.uptimeMillis();
+        mSnapshotEnabled = NoteColumns.CONTENT_URI.equals(intent.getData())
+                && SystemProperties.getBoolean(PROP_LIST_SNAPSHOT, true);
+        final boolean useSnapshot = mSnapshotEnabled && !mSortByTitle;
+        Cursor cursor;
+        if (useSnapshot) {
+            cursor = ListSnapshot.read(this);
+            mShowingSnapshot = true;
+            mQueryHandler.startQuery(TOKEN_LIST, null, intent.getData(), PROJECTION, null, null,
+                    getSortOrder());
+        } else {
+            cursor = IoWatchdog.managedQuery(this, "NotesList.onCreate",
+                    intent.getData(), PROJECTION, null, null, getSortOrder());
+        }
 
         NotesListSimpleCursorAdapter adapter = new NotesListSimpleCursorAdapter(this,
                 R.layout.noteslist_item, cursor, new String[] {
@@ -100,22 +200,443 @@ public class NotesList extends ListActivity {
                 }, new int[] {
                         R.id.title, R.id.datetime
                 });
+        adapter.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                scheduleSnapshot();
+                loadSections();
+                if (mPrefetch) {
+                    // After the new rows are laid out.
+                    mHandler.post(mPrefetchVisible);
+                }
+            }
+        });
         setListAdapter(adapter);
+        if (mPrefetch) {
+            setupPrefetch();
+        }
+        getListView().setFastScrollEnabled(mSortByTitle);
+        loadSections();
+
+        // Time to first frame, to compare runs with and without the snapshot.
+        final ViewTreeObserver observer = getListView().getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                getListView().getViewTreeObserver().removeOnPreDrawListener(this);
+                Log.i(TAG, "First frame after " + (SystemClock.uptimeMillis() - createTime)
+                        + "ms, snapshot=" + useSnapshot + ", rows="
+                        + getListAdapter().getCount());
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Reads the notes of the row being touched, and of the rows around the
+     * viewport once scrolling stops, into {@link NotePrefetch} so a tap opens
+     * them without waiting for the editor's query.
+     */
+    private void setupPrefetch() {
+        getListView().setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+                    final ListView list = getListView();
+                    final int position = list.pointToPosition((int) event.getX(),
+                            (int) event.getY());
+                    if (position != ListView.INVALID_POSITION) {
+                        NotePrefetch.prefetch(getContentResolver(), new long[] {
+                            list.getItemIdAtPosition(position)
+                        }, new long[] {
+                            versionAt(position)
+                        });
+                    }
+                }
+                return false;
+            }
+        });
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+                if (scrollState == SCROLL_STATE_IDLE) {
+                    mPrefetchVisible.run();
+                }
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+            }
+        });
+    }
+
+    private final Runnable mPrefetchVisible = new Runnable() {
+        @Override
+        public void run() {
+            final ListView list = getListView();
+            final int first = Math.max(0, list.getFirstVisiblePosition() - PREFETCH_AROUND);
+            final int last = Math.min(list.getCount() - 1,
+                    list.getLastVisiblePosition() + PREFETCH_AROUND);
+            if (last < first) {
+                return;
+            }
+            long[] ids = new long[last - first + 1];
+            long[] versions = new long[ids.length];
+            for (int i = first; i <= last; i++) {
+                ids[i - first] = list.getItemIdAtPosition(i);
+                versions[i - first] = versionAt(i);
+            }
+            NotePrefetch.prefetch(getContentResolver(), ids, versions);
+        }
+    };
+
+    /**
+     * The version of the note at position, or -1 if the list does not have
+     * it, e.g. while it shows the snapshot.
+     */
+    private long versionAt(int position) {
+        final Object item = getListView().getItemAtPosition(position);
+        if (item instanceof Cursor) {
+            final Cursor c = (Cursor) item;
+            final int column = c.getColumnIndex(NoteColumns.VERSION);
+            if (column >= 0) {
+                return c.getLong(column);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether uri lists the notes of a tag or the backlinks of a note.
+     */
+    private static boolean isSubsetUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.size() == 3 && ("tags".equals(segments.get(0))
+                || "backlinks".equals(segments.get(2)));
+    }
 
+    private String getSortOrder() {
+        return mSortByTitle ? NoteColumns.TITLE_SORT_ORDER : NoteColumns.DEFAULT_SORT_ORDER;
+    }
+
+    /**
+     * Runs the list query off the main thread and swaps the result in for the
+     * snapshot; also loads the section index for the title order.
+     */
+    private final class NotesQueryHandler extends AsyncQueryHandler {
+        NotesQueryHandler() {
+            super(getContentResolver());
+        }
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            if (cursor == null) {
+                return;
+            }
+            if (isFinishing()) {
+                cursor.close();
+                return;
+            }
+            if (token == TOKEN_TAGS) {
+                showTags(cursor);
+                return;
+            }
+            if (token == TOKEN_SECTIONS) {
+                try {
+                    mSectionIndex = SectionIndex.from(cursor);
+                } finally {
+                    cursor.close();
+                }
+                // The fast scroller only reads the sections when it is set up.
+                getListView().setFastScrollEnabled(false);
+                getListView().setFastScrollEnabled(mSortByTitle);
+                return;
+            }
+            if (mFilter.length() > 0) {
+                // A filter result already replaced the snapshot.
+                cursor.close();
+                return;
+            }
+            mShowingSnapshot = false;
+            swapListCursor(cursor);
+        }
+    }
+
+    /**
+     * Reloads the fast-scroll sections of the title order. They come from
+     * per-section counts over the whole table, so they are only used for the
+     * unfiltered list.
+     */
+    private void loadSections() {
+        mQueryHandler.cancelOperation(TOKEN_SECTIONS);
+        if (!mSortByTitle || mFilter.length() > 0
+                || !NoteColumns.CONTENT_URI.equals(getIntent().getData())) {
+            mSectionIndex = SectionIndex.EMPTY;
+            return;
+        }
+        mQueryHandler.startQuery(TOKEN_SECTIONS, null, NoteColumns.SECTIONS_URI, null, null,
+                null, null);
+    }
+
+    /**
+     * Offers the tags of the given cursor, with their note counts, and lists
+     * the notes of the one picked in a new window.
+     */
+    private void showTags(Cursor cursor) {
+        final int count = cursor.getCount();
+        final long[] ids = new long[count];
+        final String[] names = new String[count];
+        String[] items = new String[count];
+        try {
+            for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+                ids[i] = cursor.getLong(0);
+                names[i] = cursor.getString(1);
+                items[i] = getString(R.string.tag_item, names[i], cursor.getInt(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (count == 0) {
+            Toast.makeText(this, R.string.no_tags, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_tags)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent intent = new Intent(Intent.ACTION_VIEW,
+                                Tags.getNotesUri(ids[which]), NotesList.this, NotesList.class);
+                        intent.putExtra(EXTRA_LIST_TITLE, names[which]);
+                        startActivity(intent);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Requeries the list, e.g. after the sort order changed.
+     */
+    private void reloadList() {
+        cancelFilter();
+        mFilterKeyTime = SystemClock.uptimeMillis();
+        mStartFilter.run();
+    }
+
+    /**
+     * Shows cursor in the list and hands its lifecycle to the activity, in
+     * place of the previous one.
+     */
+    @SuppressWarnings("deprecation")
+    private void swapListCursor(Cursor cursor) {
+        CursorAdapter adapter = (CursorAdapter) getListAdapter();
+        Cursor old = adapter.getCursor();
+        if (old != null) {
+            stopManagingCursor(old);
+        }
+        startManagingCursor(cursor);
+        adapter.changeCursor(cursor);
+    }
+
+    /**
+     * Filters the list by title and text. Typing cancels any query already in
+     * flight; the new one starts once typing pauses for a moment.
+     */
+    private void setFilter(String filter) {
+        filter = filter.trim();
+        if (filter.equals(mFilter)) {
+            return;
+        }
+        mFilter = filter;
+        mFilterKeyTime = SystemClock.uptimeMillis();
+        cancelFilter();
+        mHandler.postDelayed(mStartFilter, FILTER_DELAY_MS);
+    }
+
+    private void cancelFilter() {
+        mHandler.removeCallbacks(mStartFilter);
+        if (mFilterTask != null) {
+            mFilterTask.cancelQuery();
+            mFilterTask = null;
+        }
+    }
+
+    private final Runnable mStartFilter = new Runnable() {
+        @Override
+        public void run() {
+            mFilterTask = new FilterTask(mFilter, getSortOrder(), mFilterKeyTime);
+            mFilterTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    };
+
+    private static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Runs one filter query in the background. The provider aborts it as soon
+     * as the signal is cancelled; the first window of rows is filled before
+     * the cursor reaches the list, and later rows page in as the list scrolls.
+     */
+    private final class FilterTask extends AsyncTask<Void, Void, Cursor> {
+        private final String mQuery;
+        private final CancellationSignal mSignal = new CancellationSignal();
+        private final String mSortOrder;
+        private final long mKeyTime;
+
+        FilterTask(String query, String sortOrder, long keyTime) {
+            mQuery = query;
+            mSortOrder = sortOrder;
+            mKeyTime = keyTime;
+        }
+
+        void cancelQuery() {
+            cancel(false);
+            mSignal.cancel();
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Uri uri = getIntent().getData();
+            String selection = null;
+            String[] selectionArgs = null;
+            if (mQuery.length() > 0 && !isSubsetUri(uri)) {
+                // Searches also find notes that were moved to the archive.
+                uri = NoteColumns.SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NoteColumns.SEARCH_QUERY, mQuery)
+                        .appendQueryParameter(NoteColumns.INCLUDE_ARCHIVE, "true").build();
+            } else if (mQuery.length() > 0) {
+                String pattern = "%" + escapeLike(mQuery) + "%";
+                selection = NoteColumns.TITLE + " LIKE ? ESCAPE '\\' OR "
+                        + NoteColumns.NOTE + " LIKE ? ESCAPE '\\'";
+                selectionArgs = new String[] {
+                        pattern, pattern
+                };
+            }
+            try {
+                Cursor c = getContentResolver().query(uri, PROJECTION,
+                        selection, selectionArgs, mSortOrder, mSignal);
+                if (c != null) {
+                    c.getCount();
+                }
+                return c;
+            } catch (OperationCanceledException e) {
+                return null;
+            }
+        }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            if (cursor == null) {
+                return;
+            }
+            if (isFinishing() || mFilterTask != this) {
+                cursor.close();
+                return;
+            }
+            mFilterTask = null;
+            Log.d(TAG, "Filter \"" + mQuery + "\": " + cursor.getCount() + " rows "
+                    + (SystemClock.uptimeMillis() - mKeyTime) + "ms after the key");
+            mShowingSnapshot = false;
+            swapListCursor(cursor);
+        }
+    }
+
+    /**
+     * Rewrites the snapshot shortly after the list changed; bursts of changes
+     * collapse into one write.
+     */
+    private void scheduleSnapshot() {
+        if (!mSnapshotEnabled || mSortByTitle || mShowingSnapshot || mFilter.length() > 0) {
+            return;
+        }
+        mHandler.removeCallbacks(mWriteSnapshot);
+        mHandler.postDelayed(mWriteSnapshot, SNAPSHOT_DELAY_MS);
+    }
+
+    private final Runnable mWriteSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            Cursor cursor = ((CursorAdapter) getListAdapter()).getCursor();
+            if (cursor != null && !cursor.isClosed() && !mShowingSnapshot && !mSortByTitle
+                    && mFilter.length() == 0) {
+                ListSnapshot.from(cursor).writeAsync(NotesList.this);
+            }
+        }
+    };
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mQueryHandler != null) {
+            mQueryHandler.cancelOperation(TOKEN_LIST);
+            mQueryHandler.cancelOperation(TOKEN_SECTIONS);
+            mQueryHandler.cancelOperation(TOKEN_TAGS);
+        }
+        mHandler.removeCallbacks(mWriteSnapshot);
+        mHandler.removeCallbacks(mPrefetchVisible);
+        cancelFilter();
+        if (IoWatchdog.isEnabled()) {
+            StringWriter report = new StringWriter();
+            IoWatchdog.dump(new PrintWriter(report));
+            Log.i(TAG, report.toString());
+        }
     }
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.new_note, menu);
+
+        SearchView searchView = (SearchView) menu.findItem(R.id.search).getActionView();
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                setFilter(newText);
+                return true;
+            }
+        });
         return super.onCreateOptionsMenu(menu);
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.sort).setTitle(mSortByTitle ? R.string.menu_sort_by_date
+                : R.string.menu_sort_by_title);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
         switch(id) {
             case R.id.new_note:
-                startActivity(new Intent(Intent.ACTION_INSERT, getIntent().getData()));
+                startActivity(new Intent(Intent.ACTION_INSERT, mNotesUri));
+                break;
+            case R.id.sort:
+                mSortByTitle = !mSortByTitle;
+                getPreferences(MODE_PRIVATE).edit()
+                        .putBoolean(PREF_SORT_BY_TITLE, mSortByTitle).apply();
+                getListView().setFastScrollEnabled(mSortByTitle);
+                reloadList();
+                break;
+            case R.id.tags:
+                mQueryHandler.cancelOperation(TOKEN_TAGS);
+                mQueryHandler.startQuery(TOKEN_TAGS, null, Tags.CONTENT_URI, new String[] {
+                        Tags._ID, Tags.NAME, Tags.NOTE_COUNT
+                }, null, null, Tags.DEFAULT_SORT_ORDER);
                 break;
         }
         return super.onOptionsItemSelected(item);
@@ -127,76 +648,194 @@ public class NotesList extends ListActivity {
     }
 
     @Override
-    public void onCreateContextMenu(ContextMenu menu, View view, ContextMenuInfo menuInfo) {
-        AdapterView.AdapterContextMenuInfo info;
-        try {
-            info = (AdapterView.AdapterContextMenuInfo) menuInfo;
-        } catch (ClassCastException e) {
-            Log.e(TAG, "bad menuInfo", e);
-            return;
+    protected void onListItemClick(ListView l, View v, int position, long id) {
+        Uri noteUri = ContentUris.withAppendedId(mNotesUri, id);
+
+        String action = getIntent().getAction();
+        if (Intent.ACTION_PICK.equals(action) || Intent.ACTION_GET_CONTENT.equals(action)) {
+            // The caller is waiting for us to return a note selected by
+            // the user. The have clicked on one, so return it now.
+            setResult(RESULT_OK, new Intent().setData(noteUri));
+        } else {
+            // Launch activity to view/edit the currently selected item
+            startActivity(new Intent(Intent.ACTION_EDIT, noteUri)
+                    .putExtra(NotePrefetch.EXTRA_TAP_TIME, SystemClock.uptimeMillis())
+                    .putExtra(NotePrefetch.EXTRA_VERSION, versionAt(position)));
         }
+    }
 
-        Cursor cursor = (Cursor) getListAdapter().getItem(info.position);
-        if (cursor == null) {
-            // For some reason the requested item isn't available, do nothing
-            return;
+    private final class SelectionModeListener implements AbsListView.MultiChoiceModeListener {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.list_select_menu, menu);
+            mActionMode = mode;
+            return true;
         }
 
-        // Inflate menu from XML resource
-        MenuInflater inflater = getMenuInflater();
-        inflater.inflate(R.menu.list_context_menu, menu);
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
 
-        // Set the context menu header
-        menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
+        @Override
+        public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
+                boolean checked) {
+            mode.setTitle(getString(R.string.selected_count,
+                    getListView().getCheckedItemCount()));
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            switch (item.getItemId()) {
+                case R.id.select_delete:
+                    mSelectedIds = getListView().getCheckedItemIds();
+                    showDialog(SURE_TO_DELETE_SELECTED);
+                    return true;
+                case R.id.select_share:
+                    new ShareTask(getListView().getCheckedItemIds()).execute();
+                    mode.finish();
+                    return true;
+                default:
+                    return false;
+            }
+        }
 
-        // Append to the
-        // menu items for any other activities that can do stuff with it
-        // as well. This does a query on the system for any activities that
-        // implement the ALTERNATIVE_ACTION for our data, adding a menu item
-        // for each one that is found.
-        Intent intent = new Intent(null, Uri.withAppendedPath(getIntent().getData(),
-                Integer.toString((int) info.id)));
-        intent.addCategory(Intent.CATEGORY_ALTERNATIVE);
-        menu.addIntentOptions(Menu.CATEGORY_ALTERNATIVE, 0, 0,
-                new ComponentName(this, NotesList.class), null, intent, 0, null);
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mActionMode = null;
+        }
     }
 
-    @SuppressWarnings("deprecation")
-    @Override
-    public boolean onContextItemSelected(MenuItem item) {
-        AdapterView.AdapterContextMenuInfo info;
-        try {
-            info = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
-        } catch (ClassCastException e) {
-            Log.e(TAG, "bad menuInfo", e);
-            return false;
+    /**
+     * Builds "_id IN (?,...)" for count ids.
+     */
+    private static String idSelection(int count) {
+        StringBuilder sb = new StringBuilder(NoteColumns._ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            sb.append(i == 0 ? "?" : ",?");
         }
+        return sb.append(')').toString();
+    }
 
-        noteUri = ContentUris.withAppendedId(getIntent().getData(), info.id);
+    private static String[] idArgs(long[] ids, int start, int end) {
+        String[] args = new String[end - start];
+        for (int i = start; i < end; i++) {
+            args[i - start] = Long.toString(ids[i]);
+        }
+        return args;
+    }
 
-        switch (item.getItemId()) {
-            case R.id.context_delete:
-                // Delete the note that the context menu is for
-                // getContentResolver().delete(noteUri, null, null);
-                showDialog(SURE_TO_DELETE);
-                return true;
-            default:
-                return super.onContextItemSelected(item);
+    /**
+     * Deletes the selected notes as a single provider batch: one transaction
+     * of set-based deletes and one change notification.
+     */
+    private final class DeleteTask extends AsyncTask<Void, Void, Integer> {
+        private final long[] mIds;
+
+        DeleteTask(long[] ids) {
+            mIds = ids;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            NotePrefetch.evict(mIds);
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            for (int start = 0; start < mIds.length; start += MAX_IDS_PER_OPERATION) {
+                final int end = Math.min(start + MAX_IDS_PER_OPERATION, mIds.length);
+                operations.add(ContentProviderOperation.newDelete(NoteColumns.CONTENT_URI)
+                        .withSelection(idSelection(end - start), idArgs(mIds, start, end))
+                        .build());
+            }
+            int count = 0;
+            try {
+                for (ContentProviderResult result : getContentResolver().applyBatch(
+                        NotePad.AUTHORITY, operations)) {
+                    count += result.count;
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to delete notes", e);
+            } catch (OperationApplicationException e) {
+                Log.e(TAG, "Failed to delete notes", e);
+            }
+            return count;
         }
     }
 
-    @Override
-    protected void onListItemClick(ListView l, View v, int position, long id) {
-        Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), id);
+    /**
+     * Collects the text of the selected notes and hands it to a share target.
+     * Only as many notes as fit in {@link #MAX_SHARE_CHARS} are shared.
+     */
+    private final class ShareTask extends AsyncTask<Void, Void, String> {
+        private final long[] mIds;
+        private int mShared;
 
-        String action = getIntent().getAction();
-        if (Intent.ACTION_PICK.equals(action) || Intent.ACTION_GET_CONTENT.equals(action)) {
-            // The caller is waiting for us to return a note selected by
-            // the user. The have clicked on one, so return it now.
-            setResult(RESULT_OK, new Intent().setData(noteUri));
-        } else {
-            // Launch activity to view/edit the currently selected item
-            startActivity(new Intent(Intent.ACTION_EDIT, noteUri));
+        ShareTask(long[] ids) {
+            mIds = ids;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            StringBuilder text = new StringBuilder();
+            // Search results may include archived notes.
+            Uri uri = NoteColumns.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NoteColumns.INCLUDE_ARCHIVE, "true").build();
+            boolean full = false;
+            for (int start = 0; start < mIds.length && !full;
+                    start += MAX_IDS_PER_OPERATION) {
+                final int end = Math.min(start + MAX_IDS_PER_OPERATION, mIds.length);
+                Cursor c = getContentResolver().query(uri, new String[] {
+                        NoteColumns.NOTE
+                }, idSelection(end - start), idArgs(mIds, start, end),
+                        NoteColumns.DEFAULT_SORT_ORDER);
+                if (c == null) {
+                    continue;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        final String note = c.getString(0);
+                        final int length = (text.length() > 0 ? 2 : 0)
+                                + (note != null ? note.length() : 0);
+                        if (text.length() + length > MAX_SHARE_CHARS) {
+                            if (mShared == 0 && note != null) {
+                                // A single huge note is cut rather than dropped.
+                                text.append(note, 0, MAX_SHARE_CHARS);
+                                mShared++;
+                            }
+                            full = true;
+                            break;
+                        }
+                        if (text.length() > 0) {
+                            text.append("\n\n");
+                        }
+                        text.append(note);
+                        mShared++;
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            return text.toString();
+        }
+
+        @Override
+        protected void onPostExecute(String text) {
+            if (isFinishing() || text.length() == 0) {
+                return;
+            }
+            if (mShared < mIds.length) {
+                Toast.makeText(NotesList.this, getString(R.string.share_truncated, mShared,
+                        mIds.length), Toast.LENGTH_LONG).show();
+            }
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("text/plain");
+            intent.putExtra(Intent.EXTRA_TEXT, text);
+            startActivity(Intent.createChooser(intent, getText(R.string.menu_share)));
         }
     }
 
@@ -217,7 +856,7 @@ public class NotesList extends ListActivity {
     @Override
     protected Dialog onCreateDialog(int id) {
         switch (id) {
-            case SURE_TO_DELETE:
+            case SURE_TO_DELETE_SELECTED:
                 return new AlertDialog.Builder(NotesList.this)
                         .setIcon(R.drawable.alert_dialog_icon)
                         .setTitle(R.string.sure_to_delete)
@@ -226,8 +865,13 @@ public class NotesList extends ListActivity {
 
                                     @Override
                                     public void onClick(DialogInterface dialog, int which) {
-                                        getContentResolver().delete(noteUri, null, null);
-
+                                        if (mSelectedIds != null) {
+                                            new DeleteTask(mSelectedIds).execute();
+                                            mSelectedIds = null;
+                                        }
+                                        if (mActionMode != null) {
+                                            mActionMode.finish();
+                                        }
                                     }
                                 })
                         .setNegativeButton(R.string.dialog_no, null)
@@ -239,10 +883,19 @@ public class NotesList extends ListActivity {
         return null;
     }
 
-    private class NotesListSimpleCursorAdapter extends SimpleCursorAdapter {
+    @Override
+    protected void onPrepareDialog(int id, Dialog dialog) {
+        if (id == SURE_TO_DELETE_SELECTED && mSelectedIds != null) {
+            dialog.setTitle(getString(R.string.sure_to_delete_selected, mSelectedIds.length));
+        }
+    }
+
+    private class NotesListSimpleCursorAdapter extends SimpleCursorAdapter
+            implements SectionIndexer {
         private ViewBinder mViewBinder;
         protected int[] mFrom;
         protected int[] mTo;
+        private String[] mOriginalFrom;
 
         @SuppressWarnings("deprecation")
         public NotesListSimpleCursorAdapter(Context context, int layout, Cursor c, String[] from,
@@ -250,23 +903,58 @@ public class NotesList extends ListActivity {
 
             super(context, layout, c, from, to);
             mTo = to;
+            mOriginalFrom = from;
+            findColumns(c);
+        }
+
+        private void findColumns(Cursor c) {
             if (c != null) {
                 int i;
-                int count = from.length;
+                int count = mOriginalFrom.length;
                 if (mFrom == null || mFrom.length != count) {
                     mFrom = new int[count];
                 }
                 for (i = 0; i < count; i++) {
-                    mFrom[i] = c.getColumnIndexOrThrow(from[i]);
+                    mFrom[i] = c.getColumnIndexOrThrow(mOriginalFrom[i]);
                 }
             } else {
                 mFrom = null;
             }
+        }
+
+        @Override
+        public Cursor swapCursor(Cursor c) {
+            // The snapshot and the live cursor may not share column positions.
+            findColumns(c);
+            return super.swapCursor(c);
+        }
 
+        @Override
+        public Object[] getSections() {
+            return mSectionIndex.getSections();
+        }
+
+        @Override
+        public int getPositionForSection(int section) {
+            return mSectionIndex.getPositionForSection(section);
+        }
+
+        @Override
+        public int getSectionForPosition(int position) {
+            return mSectionIndex.getSectionForPosition(position);
         }
 
         @Override
         public void bindView(View view, Context context, Cursor cursor) {
+            if (mPrefetch) {
+                // The list is requeried on every change, so this is where a
+                // cached note is found to be stale.
+                final int version = cursor.getColumnIndex(NoteColumns.VERSION);
+                if (version >= 0) {
+                    NotePrefetch.onListed(cursor.getLong(cursor.getColumnIndex(NoteColumns._ID)),
+                            cursor.getLong(version));
+                }
+            }
 
             final ViewBinder binder = mViewBinder;
             final int[] from = mFrom;
@@ -0,0 +1,372 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.database.CharArrayBuffer;
+import android.database.CrossProcessCursorWrapper;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.MatrixCursor;
+import android.text.format.DateFormat;
+
+/**
+ * Counters and latency histograms for {@link NotePadProvider}, kept per URI
+ * type and per operation. Recording only touches preallocated atomic arrays,
+ * so it is lock-free and does not allocate on the provider's hot paths.
+ */
+final class ProviderStats {
+
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_UPDATE = 2;
+    static final int OP_DELETE = 3;
+    static final int OP_CALL = 4;
+    static final int OP_COUNT = 5;
+
+    private static final String[] OP_NAMES = new String[] {
+            "query", "insert", "update", "delete", "call"
+    };
+
+    /**
+     * Latency buckets are powers of two in microseconds: bucket 0 holds
+     * everything below 64us, the last bucket everything above ~1s.
+     */
+    static final int BUCKET_COUNT = 16;
+    private static final int FIRST_BUCKET_SHIFT = 6;
+
+    // Per (type, op) slot counters.
+    private static final int FIELD_CALLS = 0;
+    private static final int FIELD_NANOS = 1;
+    private static final int FIELD_MAX_NANOS = 2;
+    private static final int FIELD_ROWS = 3;
+    private static final int FIELD_BYTES = 4;
+    private static final int FIELD_COUNT = 5;
+
+    // Per pending record: type, op, nanos, rows, bytes.
+    private static final int PENDING_FIELDS = 5;
+    private static final long PENDING_NOTIFICATION = -1;
+
+    /**
+     * Columns of the cursor returned by {@link #toCursor()}.
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Stats.URI_TYPE,
+            NotePad.Stats.OPERATION,
+            NotePad.Stats.CALLS,
+            NotePad.Stats.TOTAL_MICROS,
+            NotePad.Stats.MAX_MICROS,
+            NotePad.Stats.P50_MICROS,
+            NotePad.Stats.P99_MICROS,
+            NotePad.Stats.ROWS,
+            NotePad.Stats.NOTE_BYTES,
+            NotePad.Stats.NOTIFICATIONS,
+    };
+
+    private final String[] mTypeNames;
+    private final AtomicLongArray mFields;
+    private final AtomicLongArray mBuckets;
+    private final AtomicLongArray mNotifications;
+    private final long mStartTime = System.currentTimeMillis();
+
+    // Records of writes whose transaction has not committed yet, PENDING_FIELDS
+    // longs each. Only touched on the writer thread; see recordPending().
+    private long[] mPending = new long[64 * PENDING_FIELDS];
+    private int mPendingCount;
+
+    ProviderStats(String[] typeNames) {
+        mTypeNames = typeNames;
+        mFields = new AtomicLongArray(typeNames.length * OP_COUNT * FIELD_COUNT);
+        mBuckets = new AtomicLongArray(typeNames.length * OP_COUNT * BUCKET_COUNT);
+        mNotifications = new AtomicLongArray(typeNames.length);
+    }
+
+    /**
+     * Records one finished operation.
+     *
+     * @param type the URI type index, as handed to the constructor
+     * @param op one of the OP_* constants
+     * @param startNanos {@link System#nanoTime()} when the operation started
+     * @param rows rows returned or affected
+     * @param bytes bytes of NOTE text moved by the operation
+     */
+    void record(int type, int op, long startNanos, long rows, long bytes) {
+        if (type >= 0) {
+            add(type, op, System.nanoTime() - startNanos, rows, bytes);
+        }
+    }
+
+    private void add(int type, int op, long nanos, long rows, long bytes) {
+        final int slot = type * OP_COUNT + op;
+        final int base = slot * FIELD_COUNT;
+        mFields.incrementAndGet(base + FIELD_CALLS);
+        mFields.addAndGet(base + FIELD_NANOS, nanos);
+        mFields.addAndGet(base + FIELD_ROWS, rows);
+        mFields.addAndGet(base + FIELD_BYTES, bytes);
+
+        long max;
+        do {
+            max = mFields.get(base + FIELD_MAX_NANOS);
+        } while (nanos > max && !mFields.compareAndSet(base + FIELD_MAX_NANOS, max, nanos));
+
+        mBuckets.incrementAndGet(slot * BUCKET_COUNT + bucketFor(nanos));
+    }
+
+    /**
+     * Adds bytes of NOTE text moved after the operation itself was recorded,
+     * e.g. while a query cursor is being read.
+     */
+    void addBytes(int type, int op, long bytes) {
+        if (type >= 0) {
+            mFields.addAndGet((type * OP_COUNT + op) * FIELD_COUNT + FIELD_BYTES, bytes);
+        }
+    }
+
+    void recordNotification(int type) {
+        if (type >= 0) {
+            mNotifications.incrementAndGet(type);
+        }
+    }
+
+    /**
+     * Like {@link #record}, for a write whose transaction may still roll
+     * back: it only counts once {@link #commitPending()} is called, and
+     * {@link #discardPending()} drops it. Writer thread only.
+     */
+    void recordPending(int type, int op, long startNanos, long rows, long bytes) {
+        addPending(type, op, System.nanoTime() - startNanos, rows, bytes);
+    }
+
+    /**
+     * Like {@link #recordNotification}, for a notification held back until
+     * its write commits. Writer thread only.
+     */
+    void recordNotificationPending(int type) {
+        addPending(type, PENDING_NOTIFICATION, 0, 0, 0);
+    }
+
+    private void addPending(int type, long op, long nanos, long rows, long bytes) {
+        if (type < 0) {
+            return;
+        }
+        if (mPendingCount == mPending.length) {
+            mPending = Arrays.copyOf(mPending, mPendingCount * 2);
+        }
+        mPending[mPendingCount++] = type;
+        mPending[mPendingCount++] = op;
+        mPending[mPendingCount++] = nanos;
+        mPending[mPendingCount++] = rows;
+        mPending[mPendingCount++] = bytes;
+    }
+
+    /**
+     * Counts the pending records, now that their writes have committed.
+     */
+    void commitPending() {
+        for (int i = 0; i < mPendingCount; i += PENDING_FIELDS) {
+            final int type = (int) mPending[i];
+            if (mPending[i + 1] == PENDING_NOTIFICATION) {
+                recordNotification(type);
+            } else {
+                add(type, (int) mPending[i + 1], mPending[i + 2], mPending[i + 3],
+                        mPending[i + 4]);
+            }
+        }
+        mPendingCount = 0;
+    }
+
+    /**
+     * Drops the pending records of writes that were rolled back.
+     */
+    void discardPending() {
+        mPendingCount = 0;
+    }
+
+    /**
+     * Bytes a String occupies when it crosses the binder (UTF-16).
+     */
+    static long bytesOf(String s) {
+        return s == null ? 0 : 2L * s.length();
+    }
+
+    static int bucketFor(long nanos) {
+        final long micros = nanos / 1000;
+        final int bucket = (63 - Long.numberOfLeadingZeros(micros)) - FIRST_BUCKET_SHIFT + 1;
+        if (bucket < 0) {
+            return 0;
+        }
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+
+    /**
+     * Upper bound, in microseconds, of the given histogram bucket.
+     */
+    static long bucketLimitMicros(int bucket) {
+        return 1L << (bucket + FIRST_BUCKET_SHIFT);
+    }
+
+    private long percentileMicros(int slot, long calls, int percent) {
+        if (calls == 0) {
+            return 0;
+        }
+        final long wanted = (calls * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(slot * BUCKET_COUNT + i);
+            if (seen >= wanted) {
+                return bucketLimitMicros(i);
+            }
+        }
+        return bucketLimitMicros(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Snapshot of all non-empty slots as a cursor, for the stats URI.
+     */
+    MatrixCursor toCursor() {
+        MatrixCursor c = new MatrixCursor(COLUMNS);
+        for (int type = 0; type < mTypeNames.length; type++) {
+            for (int op = 0; op < OP_COUNT; op++) {
+                final int slot = type * OP_COUNT + op;
+                final int base = slot * FIELD_COUNT;
+                final long calls = mFields.get(base + FIELD_CALLS);
+                if (calls == 0) {
+                    continue;
+                }
+                c.addRow(new Object[] {
+                        mTypeNames[type],
+                        OP_NAMES[op],
+                        calls,
+                        mFields.get(base + FIELD_NANOS) / 1000,
+                        mFields.get(base + FIELD_MAX_NANOS) / 1000,
+                        percentileMicros(slot, calls, 50),
+                        percentileMicros(slot, calls, 99),
+                        mFields.get(base + FIELD_ROWS),
+                        mFields.get(base + FIELD_BYTES),
+                        mNotifications.get(type),
+                });
+            }
+        }
+        return c;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.print("Provider stats since ");
+        pw.print(DateFormat.format("yyyy-MM-dd kk:mm:ss", mStartTime));
+        pw.println(":");
+        for (int type = 0; type < mTypeNames.length; type++) {
+            pw.print("  ");
+            pw.print(mTypeNames[type]);
+            pw.print(": notifications=");
+            pw.println(mNotifications.get(type));
+            for (int op = 0; op < OP_COUNT; op++) {
+                final int slot = type * OP_COUNT + op;
+                final int base = slot * FIELD_COUNT;
+                final long calls = mFields.get(base + FIELD_CALLS);
+                if (calls == 0) {
+                    continue;
+                }
+                pw.print("    ");
+                pw.print(OP_NAMES[op]);
+                pw.print(": calls=");
+                pw.print(calls);
+                pw.print(" avg=");
+                pw.print(mFields.get(base + FIELD_NANOS) / calls / 1000);
+                pw.print("us max=");
+                pw.print(mFields.get(base + FIELD_MAX_NANOS) / 1000);
+                pw.print("us p50<=");
+                pw.print(percentileMicros(slot, calls, 50));
+                pw.print("us p99<=");
+                pw.print(percentileMicros(slot, calls, 99));
+                pw.print("us rows=");
+                pw.print(mFields.get(base + FIELD_ROWS));
+                pw.print(" noteBytes=");
+                pw.println(mFields.get(base + FIELD_BYTES));
+
+                pw.print("      histogram:");
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    final long n = mBuckets.get(slot * BUCKET_COUNT + i);
+                    if (n != 0) {
+                        pw.print(" <");
+                        pw.print(bucketLimitMicros(i));
+                        pw.print("us=");
+                        pw.print(n);
+                    }
+                }
+                pw.println();
+            }
+        }
+    }
+
+    /**
+     * Wraps a query cursor to count the NOTE text that is actually read out of
+     * it, either in-process through {@link #getString(int)} or across the
+     * binder through {@link #fillWindow(int, CursorWindow)}.
+     */
+    static final class NoteBytesCursor extends CrossProcessCursorWrapper {
+        private final ProviderStats mStats;
+        private final int mType;
+        private final int mNoteColumn;
+        /** Rows whose NOTE was counted, so rereads and refills are free. */
+        private final BitSet mCounted = new BitSet();
+        private CharArrayBuffer mBuffer;
+
+        NoteBytesCursor(Cursor cursor, ProviderStats stats, int type, int noteColumn) {
+            super(cursor);
+            mStats = stats;
+            mType = type;
+            mNoteColumn = noteColumn;
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            String s = super.getString(columnIndex);
+            if (columnIndex == mNoteColumn && !mCounted.get(getPosition())) {
+                mCounted.set(getPosition());
+                mStats.addBytes(mType, OP_QUERY, bytesOf(s));
+            }
+            return s;
+        }
+
+        @Override
+        public void fillWindow(int position, CursorWindow window) {
+            super.fillWindow(position, window);
+            final int start = window.getStartPosition();
+            final int end = start + window.getNumRows();
+            // A client scrolling back and forth makes the same rows be
+            // filled again; each row is only measured the first time.
+            int row = mCounted.nextClearBit(start);
+            if (row >= end) {
+                return;
+            }
+            if (mBuffer == null) {
+                mBuffer = new CharArrayBuffer(128);
+            }
+            long bytes = 0;
+            for (; row < end; row = mCounted.nextClearBit(row + 1)) {
+                window.copyStringToBuffer(row, mNoteColumn, mBuffer);
+                bytes += 2L * mBuffer.sizeCopied;
+                mCounted.set(row);
+            }
+            mStats.addBytes(mType, OP_QUERY, bytes);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * Fires every reminder that is due, in one batch: one query over the due
+ * time index, one notification and one update clearing them. Runs for the
+ * alarm registered by {@link ReminderScheduler}, and through
+ * {@link ReminderBootReceiver} after a reboot or a change of the clock, when
+ * any number of reminders may have come due.
+ * <p>
+ * Not exported: only the alarm, which names this class, can reach it.
+ */
+public class ReminderReceiver extends BroadcastReceiver {
+    private static final String TAG = "ReminderReceiver";
+
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final String[] PROJECTION = new String[] {
+            NoteColumns._ID, NoteColumns.TITLE
+    };
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (ReminderScheduler.ACTION_FIRE.equals(intent.getAction())) {
+            fireDueRemindersAsync(context, goAsync());
+        }
+    }
+
+    /**
+     * Fires the due reminders off the main thread, then finishes result.
+     */
+    static void fireDueRemindersAsync(final Context context, final PendingResult result) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fireDueReminders(context);
+                } finally {
+                    result.finish();
+                }
+            }
+        });
+    }
+
+    private static void fireDueReminders(Context context) {
+        final ContentResolver resolver = context.getContentResolver();
+        final String[] now = new String[] {
+            Long.toString(System.currentTimeMillis())
+        };
+        // Reading the provider also starts it after a reboot, which registers
+        // the alarm for the next reminder even if none is due yet.
+        Cursor c = resolver.query(NoteColumns.CONTENT_URI, PROJECTION,
+                NoteColumns.DUE_AT + "<=?", now, NoteColumns.DUE_AT);
+        if (c == null) {
+            return;
+        }
+        final StringBuilder ids = new StringBuilder();
+        final StringBuilder titles = new StringBuilder();
+        long firstId = -1;
+        int count = 0;
+        try {
+            while (c.moveToNext()) {
+                if (count++ == 0) {
+                    firstId = c.getLong(0);
+                } else {
+                    ids.append(',');
+                    titles.append(", ");
+                }
+                ids.append(c.getLong(0));
+                titles.append(c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        if (count == 0) {
+            return;
+        }
+        Log.i(TAG, "Firing " + count + " reminders");
+        notify(context, count, firstId, titles.toString());
+
+        // Only clear what was shown, in case a reminder was moved meanwhile.
+        ContentValues values = new ContentValues();
+        values.putNull(NoteColumns.DUE_AT);
+        resolver.update(NoteColumns.CONTENT_URI, values, NoteColumns._ID + " IN (" + ids
+                + ") AND " + NoteColumns.DUE_AT + "<=?", now);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void notify(Context context, int count, long firstId, String titles) {
+        final Intent open;
+        final String title;
+        if (count == 1) {
+            open = new Intent(Intent.ACTION_EDIT,
+                    ContentUris.withAppendedId(NoteColumns.CONTENT_URI, firstId));
+            title = TextUtils.isEmpty(titles) ? context.getString(R.string.reminder) : titles;
+        } else {
+            open = new Intent(context, NotesList.class);
+            title = context.getString(R.string.reminders, count);
+        }
+        Notification notification = new Notification.Builder(context)
+                .setSmallIcon(R.drawable.app_notes)
+                .setContentTitle(title)
+                .setContentText(count == 1 ? context.getString(R.string.reminder) : titles)
+                .setContentIntent(PendingIntent.getActivity(context, 0, open,
+                        PendingIntent.FLAG_UPDATE_CURRENT))
+                .setDefaults(Notification.DEFAULT_ALL)
+                .setAutoCancel(true)
+                .getNotification();
+        NotificationManager manager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(NOTIFICATION_ID, notification);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.PrintWriter;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.format.DateUtils;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * Keeps exactly one alarm registered: the one for the earliest pending
+ * reminder. The due times are indexed, so finding the earliest one is a
+ * single seek; {@link NotePadProvider} asks again after every commit that
+ * touched a reminder, and the alarm is only replaced when the answer changed.
+ * <p>
+ * When the alarm goes off, {@link ReminderReceiver} fires every reminder that
+ * is due and clears them, which moves the alarm on to the next one.
+ */
+final class ReminderScheduler {
+
+    static final String ACTION_FIRE = "com.mokee.notepad.action.FIRE_REMINDERS";
+
+    private static final String NOTES_TABLE = "notes";
+
+    private static final long NONE = -1;
+    private static final long UNKNOWN = -2;
+
+    private final Context mContext;
+
+    /** Due time of the registered alarm, NONE, or UNKNOWN after a restart. */
+    private long mScheduled = UNKNOWN;
+
+    ReminderScheduler(Context context) {
+        mContext = context;
+    }
+
+    static void createIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX notes_due_at ON " + NOTES_TABLE + " (" + NoteColumns.DUE_AT
+                + ");");
+    }
+
+    /**
+     * Registers the alarm for the earliest pending reminder, unless it is the
+     * one already registered.
+     */
+    synchronized void update(SQLiteDatabase db) {
+        // MIN() is a single seek into the index, past the notes without one.
+        String due = DatabaseUtils.stringForQuery(db, "SELECT MIN(" + NoteColumns.DUE_AT
+                + ") FROM " + NOTES_TABLE, null);
+        final long next = due != null ? Long.parseLong(due) : NONE;
+        if (next == mScheduled) {
+            return;
+        }
+        AlarmManager alarms = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent fire = PendingIntent.getBroadcast(mContext, 0,
+                new Intent(ACTION_FIRE).setClass(mContext, ReminderReceiver.class), 0);
+        if (next == NONE) {
+            alarms.cancel(fire);
+        } else {
+            alarms.set(AlarmManager.RTC_WAKEUP, next, fire);
+        }
+        mScheduled = next;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.print("Next reminder: ");
+        if (mScheduled == UNKNOWN) {
+            pw.println("unknown");
+        } else if (mScheduled == NONE) {
+            pw.println("none");
+        } else {
+            pw.println(DateUtils.formatDateTime(mContext, mScheduled,
+                    DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME));
+        }
+    }
+}
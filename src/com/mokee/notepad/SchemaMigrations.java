@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * Background backfills for schema upgrades. {@code onUpgrade} only makes the
+ * cheap schema changes, e.g. adding a column, and schedules a backfill for
+ * the data. The backfill then walks the notes of both tiers in id order, a
+ * batch per write of the {@link GroupCommitWriter}, and records how far it
+ * got in the same transaction, so it resumes where it stopped if the
+ * process dies.
+ * <p>
+ * Until a backfill is done, readers that depend on it check
+ * {@link #isPending} and either take a slower path that does not need the
+ * new data or return partial results, which are updated once {@link #run}
+ * is done.
+ */
+final class SchemaMigrations {
+    private static final String TAG = "SchemaMigrations";
+
+    private static final String TABLE = "migrations";
+    private static final String NAME = "name";
+    private static final String LAST_ID = "last_id";
+
+    private static final String HOT_TABLE = "main.notes";
+
+    /** Notes per tier filled in one transaction. */
+    private static final int BATCH_SIZE = 200;
+
+    /**
+     * Fills in the data of one schema change.
+     */
+    interface Backfill {
+        /** Fills the notes of table matching selection, a range of ids. */
+        void fill(SQLiteDatabase db, String table, String selection);
+
+        /** Runs in the transaction of the last batch, e.g. to add an index. */
+        void finish(SQLiteDatabase db);
+    }
+
+    private final NoteArchive mArchive;
+    private final LinkedHashMap<String, Backfill> mBackfills =
+            new LinkedHashMap<String, Backfill>();
+    private final Set<String> mPending = Collections.synchronizedSet(new HashSet<String>());
+
+    SchemaMigrations(NoteArchive archive) {
+        mArchive = archive;
+    }
+
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+                + NAME + " TEXT PRIMARY KEY,"
+                + LAST_ID + " INTEGER NOT NULL DEFAULT 0"
+                + ");");
+    }
+
+    /**
+     * Schedules a backfill from onUpgrade. It starts once the provider runs
+     * {@link #run}.
+     */
+    static void schedule(SQLiteDatabase db, String name) {
+        ContentValues values = new ContentValues();
+        values.put(NAME, name);
+        db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    void register(String name, Backfill backfill) {
+        mBackfills.put(name, backfill);
+    }
+
+    /**
+     * Reads which backfills are still pending. Called whenever the database
+     * is opened, before any query can run against it.
+     */
+    void load(SQLiteDatabase db) {
+        Cursor c = db.query(TABLE, new String[] {
+                NAME
+        }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final String name = c.getString(0);
+                if (mBackfills.containsKey(name)) {
+                    mPending.add(name);
+                } else {
+                    Log.w(TAG, "Dropping unknown migration " + name);
+                    db.delete(TABLE, NAME + "=?", new String[] {
+                        name
+                    });
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    boolean isPending(String name) {
+        return mPending.contains(name);
+    }
+
+    /**
+     * Runs every pending backfill to completion. Meant for a background
+     * thread; each batch is a write of its own, so other writes get in
+     * between batches.
+     */
+    void run(GroupCommitWriter writer, SQLiteDatabase db) {
+        for (Map.Entry<String, Backfill> entry : mBackfills.entrySet()) {
+            if (isPending(entry.getKey())) {
+                final long start = SystemClock.elapsedRealtime();
+                int batches = 0;
+                while (submitBatch(writer, db, entry.getKey(), entry.getValue())) {
+                    batches++;
+                }
+                Log.i(TAG, "Finished " + entry.getKey() + " in " + batches + " batches, "
+                        + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+        }
+    }
+
+    /**
+     * Fills the next batch as a write of writer. Returns false once nothing
+     * is left.
+     */
+    private boolean submitBatch(GroupCommitWriter writer, final SQLiteDatabase db,
+            final String name, final Backfill backfill) {
+        final boolean more = writer.submit(new GroupCommitWriter.Write<Boolean>() {
+            @Override
+            public Boolean run() {
+                return runBatch(db, name, backfill);
+            }
+        });
+        if (!more) {
+            // Not before the last batch has committed.
+            mPending.remove(name);
+        }
+        return more;
+    }
+
+    /**
+     * Fills the next batch, on the writer thread. Returns false once nothing
+     * is left.
+     */
+    private boolean runBatch(SQLiteDatabase db, String name, Backfill backfill) {
+        final String[] nameArgs = new String[] {
+            name
+        };
+        final boolean done;
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(TABLE, new String[] {
+                    LAST_ID
+            }, NAME + "=?", nameArgs, null, null, null);
+            final long lastId;
+            try {
+                if (!c.moveToFirst()) {
+                    // An earlier write finished it.
+                    return false;
+                }
+                lastId = c.getLong(0);
+            } finally {
+                c.close();
+            }
+
+            // Up to a batch of notes from each tier. The archive is checked
+            // on every batch, since it may be created while this runs.
+            long upTo = batchEnd(db, HOT_TABLE, lastId);
+            if (mArchive.isAttached()) {
+                upTo = Math.min(upTo, batchEnd(db, NoteArchive.TABLE, lastId));
+            }
+            final String selection = NoteColumns._ID + ">" + lastId
+                    + (upTo < Long.MAX_VALUE ? " AND " + NoteColumns._ID + "<=" + upTo : "");
+            backfill.fill(db, HOT_TABLE, selection);
+            if (mArchive.isAttached()) {
+                backfill.fill(db, NoteArchive.TABLE, selection);
+            }
+
+            if (upTo < Long.MAX_VALUE) {
+                ContentValues values = new ContentValues();
+                values.put(LAST_ID, upTo);
+                db.update(TABLE, values, NAME + "=?", nameArgs);
+            } else {
+                backfill.finish(db);
+                db.delete(TABLE, NAME + "=?", nameArgs);
+            }
+            db.setTransactionSuccessful();
+            done = upTo == Long.MAX_VALUE;
+        } finally {
+            db.endTransaction();
+        }
+        return !done;
+    }
+
+    /**
+     * The id ending the next batch of table after lastId, or
+     * {@link Long#MAX_VALUE} if the rest of the table fits in one batch.
+     * Read from the primary key, so it costs one seek.
+     */
+    private static long batchEnd(SQLiteDatabase db, String table, long lastId) {
+        Cursor c = db.query(table, new String[] {
+                NoteColumns._ID
+        }, NoteColumns._ID + ">" + lastId, null, null, null, NoteColumns._ID,
+                (BATCH_SIZE - 1) + "," + 1);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : Long.MAX_VALUE;
+        } finally {
+            c.close();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.print("Pending migrations: ");
+        synchronized (mPending) {
+            pw.println(mPending.isEmpty() ? "none" : mPending.toString());
+        }
+    }
+}
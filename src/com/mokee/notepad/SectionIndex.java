@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.util.Arrays;
+
+import android.database.Cursor;
+import android.widget.SectionIndexer;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * A {@link SectionIndexer} built from the per-section note counts the
+ * provider returns for {@link NoteColumns#SECTIONS_URI}. Positions are
+ * precomputed, so fast scrolling never has to walk the list cursor.
+ */
+final class SectionIndex implements SectionIndexer {
+    static final SectionIndex EMPTY = new SectionIndex(new String[0], new int[0]);
+
+    private final String[] mSections;
+    private final int[] mPositions;
+
+    private SectionIndex(String[] sections, int[] positions) {
+        mSections = sections;
+        mPositions = positions;
+    }
+
+    /**
+     * Reads a cursor of (section, count) rows in list order.
+     */
+    static SectionIndex from(Cursor cursor) {
+        final int count = cursor.getCount();
+        final int sectionColumn = cursor.getColumnIndexOrThrow(NoteColumns.SECTION);
+        final int countColumn = cursor.getColumnIndexOrThrow(NoteColumns._COUNT);
+        String[] sections = new String[count];
+        int[] positions = new int[count];
+        int position = 0;
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            sections[i] = cursor.getString(sectionColumn);
+            positions[i] = position;
+            position += cursor.getInt(countColumn);
+        }
+        return new SectionIndex(sections, positions);
+    }
+
+    @Override
+    public Object[] getSections() {
+        return mSections;
+    }
+
+    @Override
+    public int getPositionForSection(int section) {
+        if (mPositions.length == 0) {
+            return 0;
+        }
+        section = Math.max(0, Math.min(section, mPositions.length - 1));
+        return mPositions[section];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        int i = Arrays.binarySearch(mPositions, position);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        return Math.max(i, 0);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.PrintWriter;
+import java.util.regex.Pattern;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.SystemProperties;
+import android.text.format.DateFormat;
+import android.util.Log;
+
+/**
+ * The most recent queries of {@link NotePadProvider} that took longer than
+ * a threshold, with the plan SQLite chose for them. Callers pass arbitrary
+ * selections and sort orders, so this is how a slow list in the field is
+ * traced back to the query behind it.
+ * <p>
+ * Literals are stripped from the SQL and only the shape of the arguments is
+ * kept, so no note text ends up in a bug report. The threshold is read from
+ * the {@code debug.notepad.slowquery_ms} system property; 0 logs every query
+ * and a negative value turns the log off.
+ */
+final class SlowQueryLog {
+    private static final String TAG = "SlowQueryLog";
+
+    private static final String PROP_THRESHOLD = "debug.notepad.slowquery_ms";
+    private static final int DEFAULT_THRESHOLD_MS = 100;
+
+    /** Slow queries kept; older ones are overwritten. */
+    private static final int CAPACITY = 32;
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private static final class Entry {
+        long mTime;
+        String mUri;
+        String mSql;
+        String mArgs;
+        long mMicros;
+        int mRows;
+        String mPlan;
+    }
+
+    private final Entry[] mEntries = new Entry[CAPACITY];
+    private int mNext;
+    private long mTotal;
+
+    /**
+     * The threshold in milliseconds, negative if the log is off. Read on every
+     * query so it can be changed without restarting the app.
+     */
+    static long thresholdMillis() {
+        return SystemProperties.getLong(PROP_THRESHOLD, DEFAULT_THRESHOLD_MS);
+    }
+
+    /**
+     * Whether a query that started at startNanos, a {@link System#nanoTime()},
+     * is slow enough to be recorded.
+     */
+    boolean isSlow(long startNanos) {
+        final long threshold = thresholdMillis();
+        return threshold >= 0 && System.nanoTime() - startNanos >= threshold * 1000000;
+    }
+
+    /**
+     * Records a query found slow by {@link #isSlow}. The query plan is
+     * captured here, after the query, so only logged queries pay for it.
+     *
+     * @param sql the statement as run, with ? placeholders for args
+     */
+    void record(SQLiteDatabase db, Uri uri, String sql, String[] args, long startNanos,
+            int rows) {
+        final long nanos = System.nanoTime() - startNanos;
+        Entry entry = new Entry();
+        entry.mTime = System.currentTimeMillis();
+        entry.mUri = describe(uri);
+        entry.mSql = normalize(sql);
+        entry.mArgs = shapeOf(args);
+        entry.mMicros = nanos / 1000;
+        entry.mRows = rows;
+        entry.mPlan = explain(db, sql, args);
+        Log.w(TAG, entry.mUri + ": " + entry.mMicros + "us, " + rows + " rows: " + entry.mSql);
+        synchronized (mEntries) {
+            mEntries[mNext] = entry;
+            mNext = (mNext + 1) % CAPACITY;
+            mTotal++;
+        }
+    }
+
+    /**
+     * The uri with the values of its query parameters left out, since a
+     * search uri carries what the user typed.
+     */
+    static String describe(Uri uri) {
+        StringBuilder sb = new StringBuilder(uri.buildUpon().clearQuery().build().toString());
+        char separator = '?';
+        for (String name : uri.getQueryParameterNames()) {
+            sb.append(separator).append(name).append("=?");
+            separator = '&';
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The statement with its literals replaced by ? and whitespace folded,
+     * so the same query always reads the same.
+     */
+    static String normalize(String sql) {
+        String s = STRING_LITERAL.matcher(sql).replaceAll("?");
+        s = NUMBER_LITERAL.matcher(s).replaceAll("?");
+        return WHITESPACE.matcher(s).replaceAll(" ").trim();
+    }
+
+    /**
+     * The number and kind of the arguments without their values, e.g.
+     * "[num, text(12), null]".
+     */
+    static String shapeOf(String[] args) {
+        if (args == null || args.length == 0) {
+            return "[]";
+        }
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            final String arg = args[i];
+            if (arg == null) {
+                sb.append("null");
+            } else if (NUMBER_LITERAL.matcher(arg).matches()) {
+                sb.append("num");
+            } else {
+                sb.append("text(").append(arg.length()).append(')');
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String explain(SQLiteDatabase db, String sql, String[] args) {
+        StringBuilder plan = new StringBuilder();
+        try {
+            Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            try {
+                final int detail = c.getColumnIndexOrThrow("detail");
+                while (c.moveToNext()) {
+                    if (plan.length() > 0) {
+                        plan.append('\n');
+                    }
+                    plan.append(c.getString(detail));
+                }
+            } finally {
+                c.close();
+            }
+        } catch (SQLException e) {
+            return "unavailable: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            return "unavailable: " + e.getMessage();
+        }
+        return plan.toString();
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mEntries) {
+            pw.print("Slow queries: threshold=");
+            pw.print(thresholdMillis());
+            pw.print("ms total=");
+            pw.println(mTotal);
+            // Newest first.
+            for (int i = 1; i <= CAPACITY; i++) {
+                final Entry entry = mEntries[(mNext - i + CAPACITY) % CAPACITY];
+                if (entry == null) {
+                    break;
+                }
+                pw.print("  ");
+                pw.print(DateFormat.format("yyyy-MM-dd kk:mm:ss", entry.mTime));
+                pw.print(' ');
+                pw.print(entry.mUri);
+                pw.print(": ");
+                pw.print(entry.mMicros);
+                pw.print("us rows=");
+                pw.print(entry.mRows);
+                pw.print(" args=");
+                pw.println(entry.mArgs);
+                pw.print("    ");
+                pw.println(entry.mSql);
+                for (String line : entry.mPlan.split("\n")) {
+                    pw.print("    plan: ");
+                    pw.println(line);
+                }
+            }
+        }
+    }
+}
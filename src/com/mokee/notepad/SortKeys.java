@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Locale;
+
+/**
+ * Computes {@link NotePad.NoteColumns#SORT_KEY} for a title. The key is the
+ * title's section letter (A-Z, or '#') followed by the hex of its collation
+ * key under the Chinese collator, which orders Han characters by pinyin. Plain
+ * binary comparison of keys therefore gives pinyin order within each letter,
+ * and the first character of the key is the fast-scroll section.
+ */
+final class SortKeys {
+
+    static final char OTHER_SECTION = '#';
+
+    /** Only the start of a title matters for ordering. */
+    private static final int MAX_TITLE_CHARS = 64;
+
+    /**
+     * The first Han character, in pinyin order, of every initial letter in
+     * {@link #HAN_SECTIONS}. There are no pinyin syllables starting with I, U
+     * or V.
+     */
+    private static final String HAN_BOUNDARIES = "阿八嚓哒妸发旮哈讥咔垃痳拏噢妑七呥仨他穵夕丫帀";
+    private static final String HAN_SECTIONS = "ABCDEFGHJKLMNOPQRSTWXYZ";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Collators are not thread-safe; every use is synchronized on the class.
+    private static Collator sCollator;
+
+    // This class cannot be instantiated
+    private SortKeys() {
+    }
+
+    private static Collator collator() {
+        if (sCollator == null) {
+            sCollator = Collator.getInstance(Locale.CHINA);
+        }
+        return sCollator;
+    }
+
+    static synchronized String forTitle(String title) {
+        if (title == null) {
+            title = "";
+        }
+        title = title.trim();
+        if (title.length() > MAX_TITLE_CHARS) {
+            title = title.substring(0, MAX_TITLE_CHARS);
+        }
+        CollationKey key = collator().getCollationKey(title);
+        byte[] bytes = key.toByteArray();
+        StringBuilder sb = new StringBuilder(1 + 2 * bytes.length);
+        sb.append(sectionOf(title));
+        for (byte b : bytes) {
+            sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The section letter of a title: its first Latin letter, the pinyin
+     * initial of its first Han character, or {@link #OTHER_SECTION}.
+     */
+    private static char sectionOf(String title) {
+        if (title.length() == 0) {
+            return OTHER_SECTION;
+        }
+        final char c = title.charAt(0);
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            return Character.toUpperCase(c);
+        }
+        if (c < 0x4e00 || c > 0x9fff) {
+            return OTHER_SECTION;
+        }
+        final String s = String.valueOf(c);
+        final Collator collator = collator();
+        if (collator.compare(s, HAN_BOUNDARIES.substring(0, 1)) < 0) {
+            return OTHER_SECTION;
+        }
+        // Last boundary not after c.
+        int low = 0;
+        int high = HAN_BOUNDARIES.length() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (collator.compare(s, HAN_BOUNDARIES.substring(mid, mid + 1)) >= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return HAN_SECTIONS.charAt(low);
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.Selection;
+
+/**
+ * Undo/redo history for {@link NoteEditor}. Each edit is kept as a delta (the
+ * position, the text removed and the text inserted) in a bounded ring buffer;
+ * the oldest edits are dropped once either the entry count or the byte budget
+ * is exceeded. Consecutive keystrokes typed or deleted in one run are merged
+ * into a single entry.
+ * <p>
+ * The history holds no reference to any view, so it can be handed across a
+ * configuration change as a non-configuration instance.
+ */
+final class UndoHistory {
+
+    static final int MAX_ENTRIES = 256;
+    static final int MAX_BYTES = 512 * 1024;
+
+    /** Keystrokes further apart than this start a new undo step. */
+    private static final long MERGE_WINDOW_MS = 1000;
+
+    /** Longest run of keystrokes merged into one undo step. */
+    private static final int MAX_RUN = 64;
+
+    /** Rough per-entry cost on top of the text it holds. */
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private static final class Edit {
+        int start;
+        String removed;
+        String inserted;
+        long time;
+
+        int bytes() {
+            return ENTRY_OVERHEAD + 2 * (removed.length() + inserted.length());
+        }
+    }
+
+    private final Edit[] mEdits = new Edit[MAX_ENTRIES];
+    /** Index of the oldest entry. */
+    private int mHead;
+    /** Entries in the buffer, including ones that can only be redone. */
+    private int mSize;
+    /** Entries that can be undone; the rest can be redone. */
+    private int mUndoable;
+    private int mBytes;
+
+    // Captured in beforeTextChanged(), consumed in onTextChanged().
+    private String mPendingRemoved;
+
+    private boolean mIgnoring;
+
+    private Edit get(int i) {
+        return mEdits[(mHead + i) % MAX_ENTRIES];
+    }
+
+    /**
+     * Stops or resumes recording, for text changes that are not user edits,
+     * such as loading the note.
+     */
+    void setRecording(boolean recording) {
+        mIgnoring = !recording;
+    }
+
+    boolean canUndo() {
+        return mUndoable > 0;
+    }
+
+    boolean canRedo() {
+        return mUndoable < mSize;
+    }
+
+    void clear() {
+        for (int i = 0; i < MAX_ENTRIES; i++) {
+            mEdits[i] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+        mUndoable = 0;
+        mBytes = 0;
+        mPendingRemoved = null;
+    }
+
+    /**
+     * Forwarded from {@link android.text.TextWatcher#beforeTextChanged}.
+     */
+    void beforeTextChanged(CharSequence s, int start, int count) {
+        if (!mIgnoring) {
+            mPendingRemoved = s.subSequence(start, start + count).toString();
+        }
+    }
+
+    /**
+     * Forwarded from {@link android.text.TextWatcher#onTextChanged}.
+     */
+    void onTextChanged(CharSequence s, int start, int count) {
+        if (mIgnoring || mPendingRemoved == null) {
+            return;
+        }
+        final String removed = mPendingRemoved;
+        mPendingRemoved = null;
+        final String inserted = s.subSequence(start, start + count).toString();
+        if (removed.length() == 0 && inserted.length() == 0) {
+            return;
+        }
+        record(start, removed, inserted);
+    }
+
+    private void record(int start, String removed, String inserted) {
+        // Anything that could be redone is gone once the user edits again.
+        while (mSize > mUndoable) {
+            mSize--;
+            final int index = (mHead + mSize) % MAX_ENTRIES;
+            mBytes -= mEdits[index].bytes();
+            mEdits[index] = null;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        if (mUndoable > 0) {
+            final Edit last = get(mUndoable - 1);
+            if (now - last.time < MERGE_WINDOW_MS && merge(last, start, removed, inserted)) {
+                last.time = now;
+                trim();
+                return;
+            }
+        }
+
+        Edit edit = new Edit();
+        edit.start = start;
+        edit.removed = removed;
+        edit.inserted = inserted;
+        edit.time = now;
+        if (mSize == MAX_ENTRIES) {
+            dropOldest();
+        }
+        mEdits[(mHead + mSize) % MAX_ENTRIES] = edit;
+        mSize++;
+        mUndoable++;
+        mBytes += edit.bytes();
+        trim();
+    }
+
+    /**
+     * Folds a single keystroke into the previous entry if it continues the
+     * same run of typing or deleting. A newline always ends a run.
+     */
+    private boolean merge(Edit last, int start, String removed, String inserted) {
+        final int before = last.bytes();
+        if (removed.length() == 0 && inserted.length() == 1 && last.removed.length() == 0
+                && inserted.charAt(0) != '\n' && last.inserted.length() < MAX_RUN
+                && start == last.start + last.inserted.length()) {
+            // Typing forward.
+            last.inserted = last.inserted + inserted;
+        } else if (inserted.length() == 0 && removed.length() == 1
+                && last.inserted.length() == 0 && removed.charAt(0) != '\n'
+                && last.removed.length() < MAX_RUN && start + 1 == last.start) {
+            // Backspacing.
+            last.removed = removed + last.removed;
+            last.start = start;
+        } else {
+            return false;
+        }
+        mBytes += last.bytes() - before;
+        return true;
+    }
+
+    private void dropOldest() {
+        mBytes -= mEdits[mHead].bytes();
+        mEdits[mHead] = null;
+        mHead = (mHead + 1) % MAX_ENTRIES;
+        mSize--;
+        mUndoable--;
+    }
+
+    private void trim() {
+        // Always keep the newest entry, even if it alone exceeds the budget.
+        while (mBytes > MAX_BYTES && mSize > 1 && mUndoable > 0) {
+            dropOldest();
+        }
+    }
+
+    /**
+     * Reverts the newest undoable edit in text. Returns false if there was
+     * nothing to undo.
+     */
+    boolean undo(Editable text) {
+        if (!canUndo()) {
+            return false;
+        }
+        final Edit edit = get(mUndoable - 1);
+        if (!apply(text, edit.start, edit.inserted, edit.removed)) {
+            clear();
+            return false;
+        }
+        mUndoable--;
+        return true;
+    }
+
+    /**
+     * Re-applies the oldest redoable edit in text. Returns false if there was
+     * nothing to redo.
+     */
+    boolean redo(Editable text) {
+        if (!canRedo()) {
+            return false;
+        }
+        final Edit edit = get(mUndoable);
+        if (!apply(text, edit.start, edit.removed, edit.inserted)) {
+            clear();
+            return false;
+        }
+        mUndoable++;
+        return true;
+    }
+
+    /**
+     * Replaces from with to at start, provided the text still matches what
+     * the history expects there.
+     */
+    private boolean apply(Editable text, int start, String from, String to) {
+        final int end = start + from.length();
+        if (end > text.length() || !from.contentEquals(text.subSequence(start, end))) {
+            return false;
+        }
+        mIgnoring = true;
+        try {
+            text.replace(start, end, to);
+        } finally {
+            mIgnoring = false;
+        }
+        Selection.setSelection(text, start + to.length());
+        return true;
+    }
+}
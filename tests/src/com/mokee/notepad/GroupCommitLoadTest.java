@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+
+/**
+ * Measures write throughput and tail latency of the provider under
+ * concurrent load, the case its group commit is for. Each writer thread
+ * inserts scratch notes and updates each one once, as fast as it can, and
+ * the latency of every call is taken from the caller's side, so it covers
+ * the wait for the group to commit, though not a binder call. Results go to
+ * the log; compare the single writer run with the concurrent one.
+ * <p>
+ * The provider runs in an isolated context with a database of its own, so
+ * the notes on the device are never touched.
+ */
+@LargeTest
+public class GroupCommitLoadTest
+        extends ProviderTestCase2<GroupCommitLoadTest.IsolatedProvider> {
+    private static final String TAG = "GroupCommitLoadTest";
+
+    /** Writer threads of the concurrent run. */
+    private static final int THREADS = 8;
+
+    /** Notes each thread inserts; each is updated once, so twice the writes. */
+    private static final int NOTES_PER_THREAD = 100;
+
+    /**
+     * The provider without its background work, which needs services the
+     * isolated context does not have and is no part of the measurement.
+     */
+    public static class IsolatedProvider extends NotePadProvider {
+        @Override
+        protected void startBackgroundWork() {
+        }
+    }
+
+    private ContentResolver mResolver;
+
+    public GroupCommitLoadTest() {
+        super(IsolatedProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testSingleWriter() throws InterruptedException {
+        runLoad(1);
+    }
+
+    public void testConcurrentWriters() throws InterruptedException {
+        runLoad(THREADS);
+    }
+
+    private void runLoad(int threads) throws InterruptedException {
+        final long[][] latencies = new long[threads][];
+        final Throwable[] errors = new Throwable[threads];
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] writers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        latencies[index] = write(index);
+                    } catch (Throwable t) {
+                        errors[index] = t;
+                    }
+                }
+            }, TAG + "-" + i);
+            writers[i].start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        final long elapsed = System.nanoTime() - begin;
+
+        for (Throwable error : errors) {
+            if (error != null) {
+                throw new AssertionError(error);
+            }
+        }
+        final long[] all = new long[threads * NOTES_PER_THREAD * 2];
+        int count = 0;
+        for (long[] thread : latencies) {
+            System.arraycopy(thread, 0, all, count, thread.length);
+            count += thread.length;
+        }
+        Arrays.sort(all);
+        Log.i(TAG, threads + " writers, " + all.length + " writes: "
+                + String.format("%.1f", all.length * 1e9 / elapsed) + " writes/s p50="
+                + micros(all, 50) + "us p99=" + micros(all, 99) + "us p99.9="
+                + micros(all, 99.9) + "us max=" + all[all.length - 1] / 1000 + "us");
+        assertEquals(threads * NOTES_PER_THREAD, countNotes());
+    }
+
+    /**
+     * Inserts a note and updates it, NOTES_PER_THREAD times. Returns the
+     * latency of every call in nanoseconds.
+     */
+    private long[] write(int thread) {
+        final long[] nanos = new long[NOTES_PER_THREAD * 2];
+        final ContentValues values = new ContentValues();
+        for (int i = 0; i < NOTES_PER_THREAD; i++) {
+            values.clear();
+            values.put(NoteColumns.TITLE, TAG);
+            values.put(NoteColumns.NOTE, "Thread " + thread + " note " + i);
+            long begin = System.nanoTime();
+            final Uri uri = mResolver.insert(NoteColumns.CONTENT_URI, values);
+            nanos[2 * i] = System.nanoTime() - begin;
+            assertNotNull(uri);
+
+            values.put(NoteColumns.NOTE, "Thread " + thread + " note " + i + ", updated");
+            begin = System.nanoTime();
+            assertEquals(1, mResolver.update(uri, values, null, null));
+            nanos[2 * i + 1] = System.nanoTime() - begin;
+        }
+        return nanos;
+    }
+
+    private int countNotes() {
+        Cursor c = mResolver.query(NoteColumns.CONTENT_URI, new String[] {
+                NoteColumns._ID
+        }, null, null, null);
+        assertNotNull(c);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long micros(long[] sorted, double percent) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percent / 100))] / 1000;
+    }
+}
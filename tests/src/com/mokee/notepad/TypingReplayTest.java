@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mokee.notepad;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.widget.EditText;
+
+import com.mokee.notepad.NotePad.NoteColumns;
+import com.mokee.notepad.NotePad.Stats;
+
+/**
+ * Drives {@link NoteEditor} with a typing session at a human pace and
+ * reports how long the main thread spent on each keystroke. Every edit goes
+ * through the real editor: its TextWatcher, the undo history and draft
+ * journal, the {@link NoteEditor.LinedEditText} drawing, and every
+ * {@link #SAVE_EVERY} edits its save path.
+ * <p>
+ * The session is typed at the top of notes of increasing size, the rest of
+ * the note being filler text, and timed separately for each size. It is
+ * either synthetic, generated from a fixed seed so runs compare, or one
+ * recorded earlier by {@link #testRecordSession}. Results go to the log,
+ * along with the number of writes the provider saw during the run. Each
+ * test works on a scratch note of its own, deleted afterwards.
+ * <p>
+ * To record a session, set the {@code debug.notepad.replay} system property
+ * to "record" and run {@link #testRecordSession}, then type into the editor
+ * it opens and leave it with back. Sessions are kept in files/replay of the
+ * app and replayed by {@link #testRecordedSessions}.
+ */
+@LargeTest
+public class TypingReplayTest extends ActivityInstrumentationTestCase2<NoteEditor> {
+    private static final String TAG = "TypingReplayTest";
+
+    private static final String PROP_REPLAY = "debug.notepad.replay";
+
+    private static final String DIR_NAME = "replay";
+
+    /** Chars of filler text below the typing, one pass each. */
+    private static final int[] NOTE_SIZES = new int[] {
+            0, 4 * 1024, 32 * 1024, 128 * 1024
+    };
+
+    private static final int SYNTHETIC_EDITS = 300;
+    private static final long SYNTHETIC_SEED = 42;
+
+    /** Mean time between synthetic keystrokes, about 8 keys a second. */
+    private static final long KEY_INTERVAL_MS = 120;
+
+    /** The editor saves after this many edits, as if it were paused. */
+    private static final int SAVE_EVERY = 100;
+
+    /** Time given to the editor to settle before each pass. */
+    private static final long SETTLE_MS = 1000;
+
+    /** Longest a recording waits for the user to leave the editor. */
+    private static final long RECORD_TIMEOUT_MS = 10 * 60 * 1000;
+
+    /**
+     * One edit: replace before chars at start with text, delay millis after
+     * the previous edit.
+     */
+    private static final class Edit {
+        final long mDelay;
+        final int mStart;
+        final int mBefore;
+        final String mText;
+
+        Edit(long delay, int start, int before, String text) {
+            mDelay = delay;
+            mStart = start;
+            mBefore = before;
+            mText = text;
+        }
+    }
+
+    /**
+     * Main thread time of one kind of work during a pass.
+     */
+    private static final class Samples {
+        private long[] mNanos = new long[64];
+        private int mCount;
+
+        void add(long nanos) {
+            if (mCount == mNanos.length) {
+                mNanos = Arrays.copyOf(mNanos, mCount * 2);
+            }
+            mNanos[mCount++] = nanos;
+        }
+
+        String summary() {
+            if (mCount == 0) {
+                return "n=0";
+            }
+            final long[] sorted = Arrays.copyOf(mNanos, mCount);
+            Arrays.sort(sorted);
+            return "n=" + mCount + " p50=" + micros(sorted, 50) + "us p90="
+                    + micros(sorted, 90) + "us p99=" + micros(sorted, 99) + "us max="
+                    + sorted[mCount - 1] / 1000 + "us";
+        }
+
+        private static long micros(long[] sorted, int percent) {
+            return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)] / 1000;
+        }
+    }
+
+    private Instrumentation mInstrumentation;
+    private ContentResolver mResolver;
+    private Uri mNoteUri;
+    private NoteEditor mActivity;
+    private EditText mText;
+
+    /** What the editor draws into, in place of the window. */
+    private Canvas mCanvas;
+
+    /** Chars typed so far in the current pass, at the top of the note. */
+    private int mTyped;
+
+    public TypingReplayTest() {
+        super(NoteEditor.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mInstrumentation = getInstrumentation();
+        mResolver = mInstrumentation.getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.TITLE, TAG);
+        mNoteUri = mResolver.insert(NoteColumns.CONTENT_URI, values);
+        assertNotNull(mNoteUri);
+
+        setActivityInitialTouchMode(false);
+        setActivityIntent(new Intent(Intent.ACTION_EDIT, mNoteUri));
+        mActivity = getActivity();
+        mText = (EditText) mActivity.findViewById(R.id.text);
+        mInstrumentation.waitForIdleSync();
+        final Bitmap bitmap = Bitmap.createBitmap(Math.max(1, mText.getWidth()),
+                Math.max(1, mText.getHeight()), Bitmap.Config.ARGB_8888);
+        mCanvas = new Canvas(bitmap);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Finishes the editor first, which saves the note one last time.
+        super.tearDown();
+        mResolver.delete(mNoteUri, null, null);
+    }
+
+    public void testSyntheticSession() {
+        replay("synthetic", null);
+    }
+
+    public void testRecordedSessions() throws IOException {
+        final File[] files = new File(mActivity.getFilesDir(), DIR_NAME).listFiles();
+        if (files == null || files.length == 0) {
+            Log.i(TAG, "No recorded sessions");
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            replay(file.getName(), load(file));
+        }
+    }
+
+    /**
+     * Records what the user types into the editor until they leave it. Does
+     * nothing unless recording was asked for; see the class comment.
+     */
+    public void testRecordSession() throws IOException {
+        if (!"record".equals(SystemProperties.get(PROP_REPLAY))) {
+            return;
+        }
+        final Recorder recorder = new Recorder();
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mText.addTextChangedListener(recorder);
+            }
+        });
+        Log.i(TAG, "Recording; type into the note and press back when done");
+        final long deadline = SystemClock.uptimeMillis() + RECORD_TIMEOUT_MS;
+        while (!mActivity.isFinishing() && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(500);
+        }
+        final File file = new File(new File(mActivity.getFilesDir(), DIR_NAME),
+                "session-" + System.currentTimeMillis() + ".txt");
+        recorder.save(file);
+        Log.i(TAG, "Recorded session to " + file);
+    }
+
+    /**
+     * Types the session, or a synthetic one if recorded is null, on every
+     * note size in turn.
+     */
+    private void replay(String name, ArrayList<Edit> recorded) {
+        final long writesBefore = countWrites();
+        for (int pass = 0; pass < NOTE_SIZES.length; pass++) {
+            runPass(name, pass, recorded);
+        }
+        Log.i(TAG, name + ": provider writes during the run: "
+                + (countWrites() - writesBefore));
+    }
+
+    private void runPass(String name, int pass, ArrayList<Edit> recorded) {
+        // Not timed: fill the note below the typing and save it as it is.
+        final String filler = filler(NOTE_SIZES[pass]);
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mText.setText(filler);
+                mText.setSelection(0);
+            }
+        });
+        save();
+        SystemClock.sleep(SETTLE_MS);
+
+        mTyped = 0;
+        final Random random = new Random(SYNTHETIC_SEED);
+        final Samples edits = new Samples();
+        final Samples draws = new Samples();
+        final Samples saves = new Samples();
+        final long[] nanos = new long[2];
+        int step = 0;
+        while (true) {
+            final Edit edit = recorded != null
+                    ? (step < recorded.size() ? recorded.get(step) : null)
+                    : (step < SYNTHETIC_EDITS ? nextSyntheticEdit(random) : null);
+            if (edit == null) {
+                break;
+            }
+            step++;
+            SystemClock.sleep(edit.mDelay);
+            mInstrumentation.runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    final Editable text = mText.getText();
+                    final int start = Math.min(edit.mStart, text.length());
+                    final int end = Math.min(start + edit.mBefore, text.length());
+                    long begin = System.nanoTime();
+                    text.replace(start, end, edit.mText);
+                    mText.setSelection(start + edit.mText.length());
+                    nanos[0] = System.nanoTime() - begin;
+                    mTyped += edit.mText.length() - (end - start);
+
+                    // The frame the edit causes.
+                    begin = System.nanoTime();
+                    mText.draw(mCanvas);
+                    nanos[1] = System.nanoTime() - begin;
+                }
+            });
+            edits.add(nanos[0]);
+            draws.add(nanos[1]);
+            if (step % SAVE_EVERY == 0) {
+                saves.add(save());
+            }
+        }
+        saves.add(save());
+
+        Log.i(TAG, name + " pass " + pass + ", " + NOTE_SIZES[pass] + " chars below, "
+                + step + " edits");
+        Log.i(TAG, "  edit: " + edits.summary());
+        Log.i(TAG, "  draw: " + draws.summary());
+        Log.i(TAG, "  save: " + saves.summary());
+    }
+
+    /**
+     * Pauses and resumes the editor, which saves the note the way it does
+     * when the user leaves it. Returns the time spent pausing.
+     */
+    private long save() {
+        final long[] nanos = new long[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final long begin = System.nanoTime();
+                mInstrumentation.callActivityOnPause(mActivity);
+                nanos[0] = System.nanoTime() - begin;
+                mInstrumentation.callActivityOnResume(mActivity);
+            }
+        });
+        return nanos[0];
+    }
+
+    /**
+     * The next edit of a synthetic session: mostly typing and backspacing at
+     * the end of what was typed, with the occasional newline, a newline
+     * within the title line, and a paste.
+     */
+    private Edit nextSyntheticEdit(Random random) {
+        // Human typing is uneven: anywhere from half to one and a half the
+        // mean interval between keys.
+        final long delay = KEY_INTERVAL_MS / 2 + random.nextInt((int) KEY_INTERVAL_MS);
+        final int roll = random.nextInt(100);
+        if (roll < 2) {
+            return new Edit(delay * 4, mTyped, 0, words(random, 20 + random.nextInt(180)));
+        } else if (roll < 5 && mTyped > 0) {
+            final int titleEnd = TextUtils.indexOf(mText.getText(), '\n');
+            final int at = random.nextInt(Math.max(1, Math.min(mTyped,
+                    titleEnd < 0 ? mTyped : titleEnd)));
+            return new Edit(delay, at, 0, "\n");
+        } else if (roll < 10) {
+            return new Edit(delay, mTyped, 0, "\n");
+        } else if (roll < 22 && mTyped > 0) {
+            return new Edit(delay, mTyped - 1, 1, "");
+        }
+        return new Edit(delay, mTyped, 0, random.nextInt(6) == 0 ? " "
+                : String.valueOf((char) ('a' + random.nextInt(26))));
+    }
+
+    private static String words(Random random, int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(sb.length() % 7 == 6 ? ' ' : (char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    private static String filler(int chars) {
+        final StringBuilder sb = new StringBuilder(chars);
+        if (chars > 0) {
+            sb.append('\n');
+        }
+        final Random random = new Random(chars);
+        int line = 0;
+        while (sb.length() < chars) {
+            sb.append("Line ").append(++line).append(' ')
+                    .append(words(random, 40)).append('\n');
+        }
+        sb.setLength(chars);
+        return sb.toString();
+    }
+
+    /**
+     * Insert, update and delete calls seen by the provider so far.
+     */
+    private long countWrites() {
+        Cursor c = mResolver.query(Stats.CONTENT_URI, new String[] {
+                Stats.OPERATION, Stats.CALLS
+        }, null, null, null);
+        assertNotNull(c);
+        long writes = 0;
+        try {
+            while (c.moveToNext()) {
+                if (!"query".equals(c.getString(0)) && !"call".equals(c.getString(0))) {
+                    writes += c.getLong(1);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return writes;
+    }
+
+    private static ArrayList<Edit> load(File file) throws IOException {
+        ArrayList<Edit> edits = new ArrayList<Edit>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    edits.add(new Edit(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2]), unescape(fields[3])));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return edits;
+    }
+
+    private static String escape(CharSequence text) {
+        final StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '\\') {
+                sb.append("\\\\");
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String unescape(String text) {
+        final StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                c = text.charAt(++i);
+                c = c == 'n' ? '\n' : c == 't' ? '\t' : c;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Records the edits typed into the editor, with the time between them,
+     * as a session the test can play back. One edit per line: delay, start,
+     * chars replaced and the new text, separated by tabs.
+     */
+    private static final class Recorder implements TextWatcher {
+        private final StringBuilder mSession = new StringBuilder();
+        private long mLastEdit;
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public synchronized void onTextChanged(CharSequence s, int start, int before,
+                int count) {
+            final long now = SystemClock.uptimeMillis();
+            final long delay = mLastEdit == 0 ? 0 : now - mLastEdit;
+            mLastEdit = now;
+            mSession.append(delay).append('\t').append(start).append('\t').append(before)
+                    .append('\t').append(escape(s.subSequence(start, start + count)))
+                    .append('\n');
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+        }
+
+        void save(File file) throws IOException {
+            file.getParentFile().mkdirs();
+            final String session;
+            synchronized (this) {
+                session = mSession.toString();
+            }
+            FileWriter out = new FileWriter(file);
+            try {
+                out.write(session);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}